@@ -0,0 +1,167 @@
+package com.github.parze;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of items a QueueExecutor processes at the same time and adjusts the limit between minLimit and
+ * maxLimit from the processing latency of the items. After every window of completed items the limit is increased
+ * by one when items had to wait for the limit and latency stayed within latencyTolerance times the lowest latency
+ * seen, and decreased multiplicatively when latency rose above it.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimit.class);
+
+    private static final int MIN_WINDOW_SIZE = 10;
+    private static final double DECREASE_FACTOR = 0.9;
+    private static final double BASELINE_DRIFT = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final ResizableSemaphore permits;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final ReentrantLock windowLock = new ReentrantLock();
+
+    private volatile int limit;
+    private volatile long baselineLatency;
+    private int waiting;
+    private int samples;
+    private long latencySum;
+    private boolean waitedInWindow;
+    private long windowStart = System.nanoTime();
+
+    public AdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+        this(minLimit, maxLimit, minLimit, 2.0);
+    }
+
+    public AdaptiveConcurrencyLimit(int minLimit, int maxLimit, int initialLimit, double latencyTolerance) {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new TdbqException("Concurrency limits must satisfy 0 < min limit <= initial limit <= max limit.");
+        }
+        if (latencyTolerance < 1.0) {
+            throw new TdbqException("Latency tolerance must be at least 1.");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = initialLimit;
+        this.permits = new ResizableSemaphore(initialLimit);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Lowest average latency of a window in nanoseconds, slowly following the observed latency upwards.
+     */
+    public long getBaselineLatency() {
+        return baselineLatency;
+    }
+
+    void acquire() {
+        if (!permits.tryAcquire()) {
+            windowLock.lock();
+            try {
+                waiting++;
+                waitedInWindow = true;
+            } finally {
+                windowLock.unlock();
+            }
+            permits.acquireUninterruptibly();
+            windowLock.lock();
+            try {
+                waiting--;
+            } finally {
+                windowLock.unlock();
+            }
+        }
+    }
+
+    void release(long latency) {
+        permits.release();
+        windowLock.lock();
+        try {
+            samples++;
+            latencySum += latency;
+            if (samples >= Math.max(MIN_WINDOW_SIZE, limit)) {
+                endWindow();
+            }
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void endWindow() {
+        long averageLatency = latencySum / samples;
+        double throughput = samples * 1000000000.0 / Math.max(1, System.nanoTime() - windowStart);
+        if (baselineLatency == 0 || averageLatency < baselineLatency) {
+            baselineLatency = averageLatency;
+        } else {
+            // lets the baseline follow a downstream service that became slower for good
+            baselineLatency += (long) ((averageLatency - baselineLatency) * BASELINE_DRIFT);
+        }
+        int oldLimit = limit;
+        int newLimit = oldLimit;
+        if (averageLatency > baselineLatency * latencyTolerance) {
+            newLimit = Math.max(minLimit, Math.min(oldLimit - 1, (int) (oldLimit * DECREASE_FACTOR)));
+        } else if (waitedInWindow || waiting > 0) {
+            newLimit = Math.min(maxLimit, oldLimit + 1);
+        }
+        samples = 0;
+        latencySum = 0;
+        waitedInWindow = false;
+        windowStart = System.nanoTime();
+        if (newLimit != oldLimit) {
+            if (newLimit > oldLimit) {
+                permits.release(newLimit - oldLimit);
+            } else {
+                permits.reducePermits(oldLimit - newLimit);
+            }
+            limit = newLimit;
+            logger.debug("Concurrency limit changed from " + oldLimit + " to " + newLimit + ", average latency " +
+                    averageLatency + " ns, throughput " + (long) throughput + " items/s, " + waiting + " items waiting");
+            for (Listener listener : listeners) {
+                listener.limitChanged(oldLimit, newLimit, averageLatency, throughput, waiting);
+            }
+        }
+    }
+
+    public interface Listener {
+        void limitChanged(int oldLimit, int newLimit, long averageLatency, double throughput, int waitingItems);
+    }
+
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+}
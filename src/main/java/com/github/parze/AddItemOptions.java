@@ -0,0 +1,67 @@
+package com.github.parze;
+
+import java.time.Instant;
+
+public class AddItemOptions {
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private int priority = DEFAULT_PRIORITY;
+    private String shardKey;
+    private String groupKey;
+    private Instant notBefore;
+
+    public AddItemOptions withPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public AddItemOptions withShardKey(String shardKey) {
+        this.shardKey = shardKey;
+        return this;
+    }
+
+    public AddItemOptions withGroupKey(String groupKey) {
+        this.groupKey = groupKey;
+        return this;
+    }
+
+    public AddItemOptions withNotBefore(Instant notBefore) {
+        this.notBefore = notBefore;
+        return this;
+    }
+
+    /**
+     * Items with a higher priority are claimed before items with a lower one, items of equal priority in the order
+     * they were added.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Items with the same shard key are put in the same shard of a sharded queue, items without one are spread round
+     * robin.
+     */
+    public String getShardKey() {
+        return shardKey;
+    }
+
+    /**
+     * Items with the same group key are claimed one at a time in the order they were added, an item is only claimed
+     * once the items added to its group before it have been removed. Items of different groups are claimed in
+     * parallel.
+     */
+    public String getGroupKey() {
+        return groupKey;
+    }
+
+    /**
+     * Items with a not before time are not claimed before that time, items without one as soon as they are added.
+     * An item of a group that is not visible yet holds back the items added to the group after it.
+     */
+    public Instant getNotBefore() {
+        return notBefore;
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.github.parze;
+
+/**
+ * Turns queue items into the bytes stored in the database and back. Items of a codec that is not binary are stored
+ * as UTF-8 text in the item column or field, items of a binary codec in the payload column or field.
+ */
+public interface Codec<T> {
+
+    byte[] encode(T item);
+
+    T decode(byte[] data);
+
+    boolean isBinary();
+
+}
@@ -0,0 +1,69 @@
+package com.github.parze;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the items a queue compressed and decompressed, the bytes saved and the time spent doing it.
+ */
+public class CompressionStatistics {
+
+    private final AtomicLong compressedItemCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong decompressedItemCount = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    void compressed(int uncompressedLength, int compressedLength, long nanos) {
+        compressedItemCount.incrementAndGet();
+        uncompressedBytes.addAndGet(uncompressedLength);
+        compressedBytes.addAndGet(compressedLength);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    void decompressed(long nanos) {
+        decompressedItemCount.incrementAndGet();
+        decompressionNanos.addAndGet(nanos);
+    }
+
+    public long getCompressedItemCount() {
+        return compressedItemCount.get();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Compressed size divided by uncompressed size of all compressed items, 1.0 when nothing has been compressed.
+     */
+    public double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed == 0 ? 1.0 : (double) compressedBytes.get() / uncompressed;
+    }
+
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    public long getDecompressedItemCount() {
+        return decompressedItemCount.get();
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionStatistics{compressedItemCount=" + getCompressedItemCount() +
+                ", compressionRatio=" + getCompressionRatio() +
+                ", compressionNanos=" + getCompressionNanos() +
+                ", decompressedItemCount=" + getDecompressedItemCount() +
+                ", decompressionNanos=" + getDecompressionNanos() + "}";
+    }
+}
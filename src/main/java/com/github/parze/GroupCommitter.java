@@ -0,0 +1,147 @@
+package com.github.parze;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects entries submitted by concurrent callers and hands them to a writer in batches, either when maxBatchSize
+ * entries are collected or when the first entry of a batch has waited maxDelay microseconds. The future of every
+ * entry completes once the writer has committed the batch holding it. When a batch fails its entries are written one
+ * at a time, so that only the futures of entries that fail on their own complete exceptionally.
+ */
+public class GroupCommitter<E> {
+
+    private Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Writer<E> writer;
+
+    private final BlockingQueue<PendingEntry<E>> pendingEntries = new LinkedBlockingQueue<PendingEntry<E>>();
+    private final Thread committer;
+    private volatile boolean shouldBeActive = true;
+
+    public GroupCommitter(String name, int maxBatchSize, long maxDelay, Writer<E> writer) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelay);
+        this.writer = writer;
+        this.committer = new Thread("group-committer-" + name) {
+            @Override
+            public void run() {
+                while (shouldBeActive || !pendingEntries.isEmpty()) {
+                    try {
+                        commitNextBatch();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        };
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    public CompletableFuture<Void> submit(E entry) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (!shouldBeActive) {
+            future.completeExceptionally(new TdbqException("Group committer has been shut down."));
+            return future;
+        }
+        pendingEntries.add(new PendingEntry<E>(entry, future));
+        return future;
+    }
+
+    private void commitNextBatch() throws InterruptedException {
+        PendingEntry<E> pendingEntry = pendingEntries.poll(100, TimeUnit.MILLISECONDS);
+        if (pendingEntry == null) {
+            return;
+        }
+        List<PendingEntry<E>> batch = new ArrayList<PendingEntry<E>>();
+        batch.add(pendingEntry);
+        long commitAt = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+            pendingEntries.drainTo(batch, maxBatchSize - batch.size());
+            long timeLeft = commitAt - System.nanoTime();
+            if (batch.size() >= maxBatchSize || timeLeft <= 0 || !shouldBeActive) {
+                break;
+            }
+            pendingEntry = pendingEntries.poll(timeLeft, TimeUnit.NANOSECONDS);
+            if (pendingEntry == null) {
+                break;
+            }
+            batch.add(pendingEntry);
+        }
+        List<E> entries = new ArrayList<E>(batch.size());
+        for (PendingEntry<E> entry : batch) {
+            entries.add(entry.entry);
+        }
+        try {
+            writer.write(entries);
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).future.completeExceptionally(e);
+                return;
+            }
+            // commits the entries one at a time so that only the entries that fail on their own fail
+            logger.warn("Failed to commit a batch of " + entries.size() + " entries, committing them one by one", e);
+            for (PendingEntry<E> entry : batch) {
+                commitEntry(entry);
+            }
+            return;
+        }
+        for (PendingEntry<E> entry : batch) {
+            entry.future.complete(null);
+        }
+    }
+
+    private void commitEntry(PendingEntry<E> entry) {
+        try {
+            writer.write(Collections.singletonList(entry.entry));
+        } catch (RuntimeException e) {
+            entry.future.completeExceptionally(e);
+            return;
+        }
+        entry.future.complete(null);
+    }
+
+    /**
+     * Stops accepting entries and returns once the entries already submitted have been committed.
+     */
+    public void shutdown() {
+        this.shouldBeActive = false;
+        try {
+            this.committer.join();
+        } catch (InterruptedException e) {
+        }
+        // entries submitted while shutting down
+        PendingEntry<E> pendingEntry;
+        while ((pendingEntry = pendingEntries.poll()) != null) {
+            pendingEntry.future.completeExceptionally(new TdbqException("Group committer has been shut down."));
+        }
+    }
+
+    public interface Writer<E> {
+        /**
+         * Writes all entries in one transaction and returns after it has been committed.
+         */
+        void write(List<E> entries);
+    }
+
+    private static class PendingEntry<E> {
+        private final E entry;
+        private final CompletableFuture<Void> future;
+
+        PendingEntry(E entry, CompletableFuture<Void> future) {
+            this.entry = entry;
+            this.future = future;
+        }
+    }
+
+}
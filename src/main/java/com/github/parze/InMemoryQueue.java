@@ -0,0 +1,216 @@
+package com.github.parze;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A queue kept in memory only, for workloads that can lose items when the JVM stops and for tests. Items wait in a
+ * bounded lock-free ring buffer that many threads can add to and claim from at the same time, and are tracked by id
+ * from when they are claimed until they are removed. Priorities, group keys and not before times are not
+ * supported.
+ */
+public class InMemoryQueue<T> extends Queue<T> {
+
+    private final int mask;
+    private final Object[] items;
+    // the position a slot was last written or read at tells producers and consumers whose turn it is
+    private final AtomicLongArray turns;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final ConcurrentMap<Long, QueueItem<T>> claimedItems = new ConcurrentHashMap<Long, QueueItem<T>>();
+
+    protected InMemoryQueue(Class<T> clazzOfItem, String queueName, int capacity) {
+        super(clazzOfItem, queueName);
+        this.mask = capacity - 1;
+        this.items = new Object[capacity];
+        this.turns = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            turns.set(i, i);
+        }
+    }
+
+    public int getCapacity() {
+        return items.length;
+    }
+
+    @Override
+    public void addItem(T item, AddItemOptions options) {
+        checkOptions(options);
+        if (!offer(item)) {
+            throw new TdbqException("Queue " + getQueueName() + " is full.");
+        }
+    }
+
+    /**
+     * Adds the items one by one, items added before the queue turned out to be full stay in the queue.
+     */
+    @Override
+    public void addItems(Collection<T> items, AddItemOptions options) {
+        checkOptions(options);
+        for (T item : items) {
+            if (!offer(item)) {
+                throw new TdbqException("Queue " + getQueueName() + " is full.");
+            }
+        }
+    }
+
+    private void checkOptions(AddItemOptions options) {
+        if (options.getPriority() != AddItemOptions.DEFAULT_PRIORITY || options.getGroupKey() != null
+                || options.getNotBefore() != null) {
+            throw new TdbqException("Priorities, group keys and not before times are not supported by in memory queues.");
+        }
+    }
+
+    private boolean offer(T item) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = turns.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        int index = (int) position & mask;
+        items[index] = item;
+        turns.lazySet(index, position + 1);
+        return true;
+    }
+
+    private QueueItem<T> poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = turns.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+        int index = (int) position & mask;
+        @SuppressWarnings("unchecked")
+        T item = (T) items[index];
+        items[index] = null;
+        turns.lazySet(index, position + mask + 1);
+        // the position an item was added at is unique and serves as its id
+        QueueItem<T> queueItem = new QueueItem<T>(position + 1, item);
+        claimedItems.put(queueItem.getId(), queueItem);
+        return queueItem;
+    }
+
+    /**
+     * Items waiting in the ring buffer and items claimed but not removed yet.
+     */
+    @Override
+    public long getQueueSize() {
+        return Math.max(0, tail.get() - head.get()) + claimedItems.size();
+    }
+
+    @Override
+    public QueueItem<T> getAndLockNextItem() {
+        return poll();
+    }
+
+    @Override
+    public List<QueueItem<T>> getAndLockNextItems(int maxItems) {
+        List<QueueItem<T>> queueItems = new ArrayList<QueueItem<T>>();
+        QueueItem<T> queueItem;
+        while (queueItems.size() < maxItems && (queueItem = poll()) != null) {
+            queueItems.add(queueItem);
+        }
+        return queueItems;
+    }
+
+    @Override
+    public void removeItem(QueueItem<T> queueItem) {
+        claimedItems.remove(queueItem.getId());
+    }
+
+    @Override
+    public void removeItems(Collection<QueueItem<T>> queueItems) {
+        for (QueueItem<T> queueItem : queueItems) {
+            claimedItems.remove(queueItem.getId());
+        }
+    }
+
+    /**
+     * Adds the items again at the end of the queue, items that do not fit in a full queue stay claimed.
+     */
+    @Override
+    public void releaseItems(Collection<QueueItem<T>> queueItems) {
+        for (QueueItem<T> queueItem : queueItems) {
+            if (claimedItems.containsKey(queueItem.getId())) {
+                if (!offer(queueItem.getItem())) {
+                    throw new TdbqException("Queue " + getQueueName() + " is full.");
+                }
+                claimedItems.remove(queueItem.getId());
+            }
+        }
+    }
+
+
+    public static class Builder<T> {
+
+        private Class<T> clazzOfItem;
+        private String queueName;
+        private Integer capacity;
+
+        public Builder<T> withClassOfItem(Class<T> clazzOfItem) {
+            this.clazzOfItem = clazzOfItem;
+            return this;
+        }
+
+        public Builder<T> withQueueName(String queueName) {
+            this.queueName = queueName;
+            return this;
+        }
+
+        /**
+         * The number of items that can wait in the queue, rounded up to a power of two. Adding items to a full queue
+         * fails.
+         */
+        public Builder<T> withCapacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public InMemoryQueue<T> build() {
+            if (clazzOfItem == null) {
+                throw new TdbqException("Class of item must be set.");
+            }
+            if (queueName == null) {
+                queueName = "queue_"+clazzOfItem.getName().replace('.', '_').toLowerCase();
+            }
+            if (capacity == null) {
+                capacity = 1024;
+            }
+            if (capacity <= 0 || capacity > (1 << 30)) {
+                throw new TdbqException("Capacity must be between 1 and 2^30.");
+            }
+            int powerOfTwo = 1;
+            while (powerOfTwo < capacity) {
+                powerOfTwo <<= 1;
+            }
+            return new InMemoryQueue<T>(clazzOfItem, queueName, powerOfTwo);
+        }
+
+    }
+
+}
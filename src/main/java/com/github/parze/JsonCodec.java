@@ -0,0 +1,39 @@
+package com.github.parze;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+
+public class JsonCodec<T> implements Codec<T> {
+
+    private final Class<T> clazzOfItem;
+    private final ObjectMapper mapper;
+
+    public JsonCodec(Class<T> clazzOfItem) {
+        this.clazzOfItem = clazzOfItem;
+        this.mapper = new ObjectMapper();
+    }
+
+    @Override
+    public byte[] encode(T item) {
+        try {
+            return mapper.writeValueAsBytes(item);
+        } catch (IOException e) {
+            throw new TdbqException("Failed to parse item to Json.", e);
+        }
+    }
+
+    @Override
+    public T decode(byte[] data) {
+        try {
+            return mapper.readValue(data, 0, data.length, clazzOfItem);
+        } catch (IOException e) {
+            throw new TdbqException("Failed to parse item to Json.", e);
+        }
+    }
+
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+}
@@ -0,0 +1,543 @@
+package com.github.parze;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A durable queue kept in memory mapped segment files in a directory of its own. Items are appended to the last
+ * segment as records of [length][state][kind and stored item], and removing an item marks its record as acknowledged
+ * in place. A segment is deleted when all its records are acknowledged. On restart the segments are scanned and all
+ * items not acknowledged are claimable again, including items that were claimed but not removed. The id of an item
+ * is the number of its segment in the upper 32 bits and the offset of its record in the lower 32 bits. Priorities,
+ * group keys and not before times are not supported. Call close() to release the segment files when the queue is no
+ * longer used.
+ */
+public class MappedFileQueue<T> extends Queue<T> {
+
+    private Logger logger = LoggerFactory.getLogger(MappedFileQueue.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final int END_OF_SEGMENT = -1;
+    private static final byte STATE_READY = 1;
+    private static final byte STATE_ACKNOWLEDGED = 2;
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_BINARY = 1;
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean forceOnWrite;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    // guards appending, claiming and deleting segments
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong unacknowledgedItems = new AtomicLong();
+    private Segment writeSegment;
+    private Segment readSegment;
+    private int readPosition;
+    private boolean closed;
+
+    protected MappedFileQueue(Class<T> clazzOfItem, String queueName, Codec<T> codec, int compressionThreshold,
+                              File directory, int segmentSize, boolean forceOnWrite) {
+        super(clazzOfItem, queueName, codec, compressionThreshold);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.forceOnWrite = forceOnWrite;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new TdbqException("Failed to create queue directory " + directory + ".");
+        }
+        recover();
+    }
+
+    private void recover() {
+        String[] fileNames = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+        Arrays.sort(fileNames);
+        for (String fileName : fileNames) {
+            long number = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+            Segment segment = openSegment(number);
+            segment.scan();
+            unacknowledgedItems.addAndGet(segment.unacknowledgedRecords.get());
+            segments.put(number, segment);
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, openSegment(0));
+        }
+        this.writeSegment = segments.lastEntry().getValue();
+        this.readSegment = segments.firstEntry().getValue();
+        this.readPosition = 0;
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            deleteIfAcknowledged(segment);
+        }
+        logger.info("Recovered queue " + getQueueName() + " with " + unacknowledgedItems.get() + " items in " +
+                segments.size() + " segments");
+    }
+
+    private Segment openSegment(long number) {
+        File file = new File(directory, String.format("%020d", number) + SEGMENT_FILE_SUFFIX);
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                return new Segment(number, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+            } catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new TdbqException("Failed to map segment file " + file + ".", e);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void addItem(T item, AddItemOptions options) {
+        checkOptions(options);
+        byte[] record = toRecord(toStoredForm(item));
+        lock.lock();
+        try {
+            checkOpen();
+            append(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void addItems(Collection<T> items, AddItemOptions options) {
+        checkOptions(options);
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (T item : items) {
+            records.add(toRecord(toStoredForm(item)));
+        }
+        lock.lock();
+        try {
+            checkOpen();
+            for (byte[] record : records) {
+                append(record);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new TdbqException("Queue " + getQueueName() + " is closed.");
+        }
+    }
+
+    private void checkOptions(AddItemOptions options) {
+        if (options.getPriority() != AddItemOptions.DEFAULT_PRIORITY || options.getGroupKey() != null
+                || options.getNotBefore() != null) {
+            throw new TdbqException("Priorities, group keys and not before times are not supported by mapped file queues.");
+        }
+    }
+
+    private byte[] toRecord(Object storedItem) {
+        byte kind = storedItem instanceof String ? KIND_TEXT : KIND_BINARY;
+        byte[] data = storedItem instanceof String ? ((String) storedItem).getBytes(UTF_8) : (byte[]) storedItem;
+        if (RECORD_HEADER_SIZE + 1 + data.length + 4 > segmentSize) {
+            throw new TdbqException("Item of " + data.length + " bytes does not fit in a segment of queue " + getQueueName() + ".");
+        }
+        byte[] record = new byte[data.length + 1];
+        record[0] = kind;
+        System.arraycopy(data, 0, record, 1, data.length);
+        return record;
+    }
+
+    private void append(byte[] record) {
+        // room is left for the end of segment marker
+        if (writeSegment.full || writeSegment.writePosition + RECORD_HEADER_SIZE + record.length + 4 > segmentSize) {
+            if (!writeSegment.full) {
+                writeSegment.buffer.putInt(writeSegment.writePosition, END_OF_SEGMENT);
+                writeSegment.full = true;
+                if (forceOnWrite) {
+                    writeSegment.buffer.force();
+                }
+            }
+            Segment segment = openSegment(writeSegment.number + 1);
+            segments.put(segment.number, segment);
+            Segment previousSegment = writeSegment;
+            writeSegment = segment;
+            deleteIfAcknowledged(previousSegment);
+        }
+        MappedByteBuffer buffer = writeSegment.buffer;
+        int position = writeSegment.writePosition;
+        buffer.put(position + 4, STATE_READY);
+        ByteBuffer view = buffer.duplicate();
+        // through Buffer since ByteBuffer.position(int) does not exist on Java 8
+        ((Buffer) view).position(position + RECORD_HEADER_SIZE);
+        view.put(record);
+        // the length is written last, a record without length is not there after a crash
+        buffer.putInt(position, record.length);
+        writeSegment.writePosition = position + RECORD_HEADER_SIZE + record.length;
+        writeSegment.unacknowledgedRecords.incrementAndGet();
+        unacknowledgedItems.incrementAndGet();
+        if (forceOnWrite) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public long getQueueSize() {
+        return unacknowledgedItems.get();
+    }
+
+    @Override
+    public QueueItem<T> getAndLockNextItem() {
+        List<QueueItem<T>> queueItems = getAndLockNextItems(1);
+        if (queueItems.isEmpty()) {
+            return null;
+        }
+        return queueItems.get(0);
+    }
+
+    @Override
+    public List<QueueItem<T>> getAndLockNextItems(int maxItems) {
+        List<QueueItem<T>> queueItems = new ArrayList<QueueItem<T>>();
+        lock.lock();
+        try {
+            checkOpen();
+            while (queueItems.size() < maxItems) {
+                MappedByteBuffer buffer = readSegment.buffer;
+                int length = readPosition + 4 <= segmentSize ? buffer.getInt(readPosition) : END_OF_SEGMENT;
+                if (length == END_OF_SEGMENT && readSegment != writeSegment) {
+                    Segment previousSegment = readSegment;
+                    readSegment = segments.higherEntry(readSegment.number).getValue();
+                    readPosition = 0;
+                    deleteIfAcknowledged(previousSegment);
+                    continue;
+                }
+                if (length <= 0) {
+                    break;
+                }
+                // records acknowledged before a restart are passed over
+                if (buffer.get(readPosition + 4) == STATE_READY) {
+                    byte kind = buffer.get(readPosition + RECORD_HEADER_SIZE);
+                    byte[] data = new byte[length - 1];
+                    ByteBuffer view = buffer.duplicate();
+                    ((Buffer) view).position(readPosition + RECORD_HEADER_SIZE + 1);
+                    view.get(data);
+                    Object storedItem = kind == KIND_TEXT ? new String(data, UTF_8) : data;
+                    long id = (readSegment.number << 32) | readPosition;
+                    queueItems.add(new QueueItem<T>(id, storedItem, this));
+                }
+                readPosition += RECORD_HEADER_SIZE + length;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return queueItems;
+    }
+
+    @Override
+    public void removeItem(QueueItem<T> queueItem) {
+        Segment segment = segments.get(queueItem.getId() >>> 32);
+        if (segment == null) {
+            return;
+        }
+        int position = (int) (queueItem.getId() & 0xffffffffL);
+        if (segment.acknowledge(position)) {
+            unacknowledgedItems.decrementAndGet();
+            if (segment.unacknowledgedRecords.get() == 0) {
+                lock.lock();
+                try {
+                    deleteIfAcknowledged(segment);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeItems(Collection<QueueItem<T>> queueItems) {
+        for (QueueItem<T> queueItem : queueItems) {
+            removeItem(queueItem);
+        }
+    }
+
+    /**
+     * Appends the items again at the end of the queue and acknowledges their records, since the read position does
+     * not go back.
+     */
+    @Override
+    public void releaseItems(Collection<QueueItem<T>> queueItems) {
+        lock.lock();
+        try {
+            checkOpen();
+            for (QueueItem<T> queueItem : queueItems) {
+                Segment segment = segments.get(queueItem.getId() >>> 32);
+                int position = (int) (queueItem.getId() & 0xffffffffL);
+                if (segment == null || !segment.isReady(position)) {
+                    continue;
+                }
+                // appended before the old record is acknowledged so that a crash in between does not lose the item
+                append(toRecord(queueItem.getStoredItem()));
+                removeItem(queueItem);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a segment that is full, read past and has all its records acknowledged. Called holding the lock.
+     */
+    private void deleteIfAcknowledged(Segment segment) {
+        if (segment == writeSegment || segment == readSegment || segment.unacknowledgedRecords.get() > 0 ||
+                !segments.containsKey(segment.number)) {
+            return;
+        }
+        segments.remove(segment.number);
+        // a file that is still mapped or open cannot be deleted on Windows
+        segment.release();
+        if (!segment.file.delete()) {
+            logger.warn("Failed to delete acknowledged segment file " + segment.file);
+        }
+    }
+
+    /**
+     * Writes all segments to disk.
+     */
+    public void force() {
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            entry.getValue().force();
+        }
+    }
+
+    /**
+     * Writes all segments to disk and releases their mappings and files. The queue can not be used afterwards, the
+     * items that were not removed are found again by a queue opened on the same directory.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.force();
+                segment.release();
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unmaps a buffer right away instead of when it is garbage collected, through Unsafe.invokeCleaner from Java 9
+     * and through the cleaner of the buffer on Java 8.
+     */
+    private static void unmap(MappedByteBuffer buffer) throws Exception {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+    }
+
+
+    private class Segment {
+
+        private final long number;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger unacknowledgedRecords = new AtomicInteger();
+        private int writePosition;
+        private boolean full;
+        // guarded by the segment, the buffer must not be touched after it is unmapped
+        private boolean released;
+
+        Segment(long number, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void scan() {
+            int position = 0;
+            while (position + 4 <= segmentSize) {
+                int length = buffer.getInt(position);
+                if (length == END_OF_SEGMENT) {
+                    full = true;
+                    break;
+                }
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize) {
+                    break;
+                }
+                if (buffer.get(position + 4) == STATE_READY) {
+                    unacknowledgedRecords.incrementAndGet();
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            writePosition = position;
+        }
+
+        boolean acknowledge(int position) {
+            synchronized (this) {
+                if (released || buffer.get(position + 4) != STATE_READY) {
+                    return false;
+                }
+                buffer.put(position + 4, STATE_ACKNOWLEDGED);
+                if (forceOnWrite) {
+                    buffer.force();
+                }
+            }
+            unacknowledgedRecords.decrementAndGet();
+            return true;
+        }
+
+        synchronized boolean isReady(int position) {
+            return !released && buffer.get(position + 4) == STATE_READY;
+        }
+
+        synchronized void force() {
+            if (!released) {
+                buffer.force();
+            }
+        }
+
+        synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            try {
+                unmap(buffer);
+            } catch (Exception e) {
+                logger.warn("Failed to unmap segment file " + file + ", it is unmapped when garbage collected", e);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close segment file " + file, e);
+            }
+        }
+    }
+
+
+    public static class Builder<T> {
+
+        private Class<T> clazzOfItem;
+        private String queueName;
+        private File directory;
+        private Integer segmentSize;
+        private boolean forceOnWrite;
+        private Codec<T> codec;
+        private Integer compressionThreshold;
+
+        public Builder<T> withClassOfItem(Class<T> clazzOfItem) {
+            this.clazzOfItem = clazzOfItem;
+            return this;
+        }
+
+        public Builder<T> withQueueName(String queueName) {
+            this.queueName = queueName;
+            return this;
+        }
+
+        /**
+         * The directory the segment files are kept in, a directory named as the queue in the temporary directory
+         * by default.
+         */
+        public Builder<T> withDirectory(File directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public Builder<T> withSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Forces every write to disk before returning, so that items survive a power failure and not only a crash
+         * of the JVM. Much slower.
+         */
+        public Builder<T> withForceOnWrite(boolean forceOnWrite) {
+            this.forceOnWrite = forceOnWrite;
+            return this;
+        }
+
+        public Builder<T> withCodec(Codec<T> codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        public Builder<T> withCompressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        public MappedFileQueue<T> build() {
+            if (clazzOfItem == null) {
+                throw new TdbqException("Class of item must be set.");
+            }
+            if (queueName == null) {
+                queueName = "queue_"+clazzOfItem.getName().replace('.', '_').toLowerCase();
+            }
+            if (directory == null) {
+                directory = new File(System.getProperty("java.io.tmpdir"), queueName);
+            }
+            if (segmentSize == null) {
+                segmentSize = 64 * 1024 * 1024;
+            }
+            if (segmentSize < 1024) {
+                throw new TdbqException("Segment size must be at least 1024 bytes.");
+            }
+            if (codec == null) {
+                codec = new JsonCodec<T>(clazzOfItem);
+            }
+            if (compressionThreshold == null) {
+                compressionThreshold = -1;
+            }
+            return new MappedFileQueue<T>(clazzOfItem, queueName, codec, compressionThreshold, directory, segmentSize,
+                    forceOnWrite);
+        }
+
+    }
+
+}
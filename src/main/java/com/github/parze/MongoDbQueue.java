@@ -3,15 +3,29 @@ package com.github.parze;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
 import com.mongodb.WriteResult;
 import com.mongodb.client.MongoDatabase;
+import org.bson.types.Binary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 public class MongoDbQueue<T> extends Queue<T> {
 
@@ -20,42 +34,237 @@ public class MongoDbQueue<T> extends Queue<T> {
     private static String FIELD_CREATED_SEQUENCE = "created_sequence";
     private static String FIELD_STARTED_AT = "started_at";
     private static String FIELD_ITEM = "item";
+    private static String FIELD_PAYLOAD = "payload";
+    private static String FIELD_PRIORITY = "prio";
+    private static String FIELD_LOCK_TOKEN = "lock_token";
+    private static String FIELD_GROUP_KEY = "group_key";
+    private static String FIELD_VISIBLE_AT = "visible_at";
     private static String COLLECTION_NAME_COUNTERS = "counters";
+    private static String COLLECTION_NAME_SCHEMA_VERSION = "tdbq_schema_version";
+    private static final int SCHEMA_VERSION = 1;
+    private static final int CANDIDATE_FACTOR = 4;
+    private static String COLLECTION_NAME_SUFFIX_SIGNALS = "_signals";
+    private static int SIGNAL_COLLECTION_SIZE = 1024 * 1024;
 
     private MongoDatabase mongoDatabase;
     private DB mongoDb;
     private DBCollection queueCollection;
     private DBCollection queueCounterCollection;
     private String counterName;
+    private DBCollection signalCollection;
+    private final int sequenceBlockSize;
+    private final Object sequenceBlockLock = new Object();
+    private long nextSequenceNumberInBlock = 1;
+    private long lastSequenceNumberInBlock = 0;
 
     protected MongoDbQueue(Class<T> clazzOfItem, MongoClient mongoClient, String databaseName, String queueName) {
-        super(clazzOfItem, queueName);
+        this(clazzOfItem, mongoClient, databaseName, queueName, false, 1, new JsonCodec<T>(clazzOfItem), -1);
+    }
+
+    protected MongoDbQueue(Class<T> clazzOfItem, MongoClient mongoClient, String databaseName, String queueName,
+                           boolean signalOnAddItem, int sequenceBlockSize, Codec<T> codec,
+                           int compressionThreshold) {
+        super(clazzOfItem, queueName, codec, compressionThreshold);
+        this.sequenceBlockSize = sequenceBlockSize;
         this.mongoDatabase = mongoClient.getDatabase(databaseName);
         this.mongoDb = mongoClient.getDB(databaseName);
         this.queueCollection = this.mongoDb.getCollection(queueName); //mongoDatabase.getCollection(queueName);
         this.queueCounterCollection = this.mongoDb.getCollection(COLLECTION_NAME_COUNTERS);
         this.counterName = queueName+"_counter";
+        migrateCollection();
+        createIndexes();
+        if (signalOnAddItem) {
+            this.signalCollection = getSignalCollection();
+        }
+    }
+
+    /**
+     * Brings the documents of the queue collection up to SCHEMA_VERSION, keeping the version of every queue in the
+     * schema version collection. Steps may run on several nodes at the same time and must be safe to repeat.
+     */
+    private void migrateCollection() {
+        DBCollection schemaVersionCollection = this.mongoDb.getCollection(COLLECTION_NAME_SCHEMA_VERSION);
+        DBObject schemaVersion = schemaVersionCollection.findOne(new BasicDBObject("_id", getQueueName()));
+        int version = schemaVersion == null ? 0 : ((Number) schemaVersion.get("version")).intValue();
+        while (version < SCHEMA_VERSION) {
+            int nextVersion = version + 1;
+            switch (nextVersion) {
+                case 1:
+                    // items added before priorities were supported get the default priority
+                    queueCollection.update(new BasicDBObject(FIELD_PRIORITY, new BasicDBObject("$exists", false)),
+                            new BasicDBObject("$set", new BasicDBObject(FIELD_PRIORITY, AddItemOptions.DEFAULT_PRIORITY)), false, true);
+                    try {
+                        queueCollection.dropIndex(new BasicDBObject(FIELD_STARTED_AT, 1).append(FIELD_CREATED_SEQUENCE, 1));
+                    } catch (MongoException e) {
+                        // the claim index without priority does not exist
+                    }
+                    break;
+                default:
+                    throw new TdbqException("Unknown schema version " + nextVersion + ".");
+            }
+            schemaVersionCollection.update(new BasicDBObject("_id", getQueueName()),
+                    new BasicDBObject("$set", new BasicDBObject("version", nextVersion)), true, false);
+            logger.info("Migrated queue collection " + getQueueName() + " to schema version " + nextVersion);
+            version = nextVersion;
+        }
+    }
+
+    private void createIndexes() {
+        // serves the claim query on items not started, in priority and created order
+        queueCollection.createIndex(new BasicDBObject(FIELD_STARTED_AT, 1).append(FIELD_PRIORITY, -1).append(FIELD_CREATED_SEQUENCE, 1));
+        // serves reading back the items locked by a batch claim
+        queueCollection.createIndex(new BasicDBObject(FIELD_LOCK_TOKEN, 1), new BasicDBObject("sparse", true));
+        // serves finding the oldest item of a group
+        queueCollection.createIndex(new BasicDBObject(FIELD_GROUP_KEY, 1).append(FIELD_CREATED_SEQUENCE, 1),
+                new BasicDBObject("sparse", true));
+        // serves finding the next item that becomes visible
+        queueCollection.createIndex(new BasicDBObject(FIELD_VISIBLE_AT, 1), new BasicDBObject("sparse", true));
     }
 
     public DBCollection getQueueCollection() {
         return this.queueCollection;
     }
 
-    @Override
-    public void addItem(T item) {
+    /**
+     * The capped collection that gets a small document every time items are added, when the queue is built with
+     * withSignalOnAddItem(true). Consumers tail it to learn about new items without polling the queue collection.
+     */
+    public DBCollection getSignalCollection() {
+        String signalCollectionName = getQueueName() + COLLECTION_NAME_SUFFIX_SIGNALS;
+        if (!this.mongoDb.collectionExists(signalCollectionName)) {
+            try {
+                this.mongoDb.createCollection(signalCollectionName, new BasicDBObject("capped", true)
+                        .append("size", SIGNAL_COLLECTION_SIZE));
+            } catch (MongoException e) {
+                // another node created the collection at the same time
+                logger.debug("Could not create signal collection " + signalCollectionName, e);
+            }
+        }
+        return this.mongoDb.getCollection(signalCollectionName);
+    }
+
+    private void signalItemsAdded() {
+        if (this.signalCollection != null) {
+            this.signalCollection.insert(new BasicDBObject("queue", getQueueName()));
+        }
+    }
+
+    private BasicDBObject createDocument(long sequenceNumber, T item, AddItemOptions options) {
+        Object storedItem = toStoredForm(item);
         BasicDBObject document = new BasicDBObject()
-                .append(FIELD_CREATED_SEQUENCE, getNextSequenceNumber())
-                .append(FIELD_ITEM, toJson(item))
+                .append(FIELD_CREATED_SEQUENCE, sequenceNumber)
+                .append(storedItem instanceof String ? FIELD_ITEM : FIELD_PAYLOAD, storedItem)
+                .append(FIELD_PRIORITY, options.getPriority())
                 .append(FIELD_STARTED_AT, null);
+        if (options.getGroupKey() != null) {
+            document.append(FIELD_GROUP_KEY, options.getGroupKey());
+        }
+        if (options.getNotBefore() != null) {
+            document.append(FIELD_VISIBLE_AT, new Date(options.getNotBefore().toEpochMilli()));
+        }
+        return document;
+    }
+
+    /**
+     * Returns the groups that have an item being processed. None of their items can be claimed until it is removed.
+     */
+    private Set<Object> getBusyGroups() {
+        Set<Object> busyGroups = new HashSet<Object>();
+        DBCursor cursor = queueCollection.find(new BasicDBObject(FIELD_STARTED_AT, new BasicDBObject("$ne", null))
+                .append(FIELD_GROUP_KEY, new BasicDBObject("$ne", null)), new BasicDBObject(FIELD_GROUP_KEY, 1));
+        try {
+            while (cursor.hasNext()) {
+                busyGroups.add(cursor.next().get(FIELD_GROUP_KEY));
+            }
+        } finally {
+            cursor.close();
+        }
+        return busyGroups;
+    }
+
+    /**
+     * An item of a group may only be claimed when it has the lowest sequence number left in its group. The lowest
+     * sequence number of a group is looked up once per claim from the group index.
+     */
+    private boolean isGroupHead(DBObject candidate, Map<Object, Long> groupHeads) {
+        Object groupKey = candidate.get(FIELD_GROUP_KEY);
+        if (groupKey == null) {
+            return true;
+        }
+        Long groupHead = groupHeads.get(groupKey);
+        if (groupHead == null) {
+            DBCursor cursor = queueCollection.find(new BasicDBObject(FIELD_GROUP_KEY, groupKey), new BasicDBObject(FIELD_CREATED_SEQUENCE, 1))
+                    .sort(new BasicDBObject(FIELD_GROUP_KEY, 1).append(FIELD_CREATED_SEQUENCE, 1)).limit(1);
+            try {
+                groupHead = cursor.hasNext() ? ((Number) cursor.next().get(FIELD_CREATED_SEQUENCE)).longValue() : -1L;
+            } finally {
+                cursor.close();
+            }
+            groupHeads.put(groupKey, groupHead);
+        }
+        return groupHead == ((Number) candidate.get(FIELD_CREATED_SEQUENCE)).longValue();
+    }
+
+    private Object getStoredItem(DBObject document) {
+        Object payload = document.get(FIELD_PAYLOAD);
+        if (payload instanceof Binary) {
+            return ((Binary) payload).getData();
+        }
+        return payload != null ? payload : document.get(FIELD_ITEM).toString();
+    }
+
+    @Override
+    public void addItem(T item, AddItemOptions options) {
+        BasicDBObject document = createDocument(getNextSequenceNumber(), item, options);
         queueCollection.insert(document);
+        signalItemsAdded();
         logger.info("Added item " + item.toString() + " to the queue.");
     }
 
-    public Integer getNextSequenceNumber() {
-        BasicDBObject query = new BasicDBObject("name", new BasicDBObject("$eq", counterName));
-        BasicDBObject update = new BasicDBObject("$inc", new BasicDBObject("number", 1));
+    @Override
+    public void addItems(Collection<T> items, AddItemOptions options) {
+        if (items.isEmpty()) {
+            return;
+        }
+        // reserve one block of sequence numbers for all items and insert them with a single bulk insert
+        long sequenceNumber = reserveSequenceNumbers(items.size());
+        List<DBObject> documents = new ArrayList<DBObject>();
+        for (T item : items) {
+            documents.add(createDocument(sequenceNumber++, item, options));
+        }
+        queueCollection.insert(documents);
+        signalItemsAdded();
+        logger.info("Added " + items.size() + " items to the queue.");
+    }
+
+    public Long getNextSequenceNumber() {
+        return reserveSequenceNumbers(1);
+    }
+
+    /**
+     * Reserves count consecutive sequence numbers and returns the first of them. With a sequence block size above
+     * one the numbers are taken from a block reserved earlier, so most calls do not touch the counters collection.
+     */
+    private long reserveSequenceNumbers(int count) {
+        if (count >= sequenceBlockSize) {
+            return incrementCounter(count) - count + 1;
+        }
+        synchronized (sequenceBlockLock) {
+            if (nextSequenceNumberInBlock + count - 1 > lastSequenceNumberInBlock) {
+                lastSequenceNumberInBlock = incrementCounter(sequenceBlockSize);
+                nextSequenceNumberInBlock = lastSequenceNumberInBlock - sequenceBlockSize + 1;
+            }
+            long sequenceNumber = nextSequenceNumberInBlock;
+            nextSequenceNumberInBlock += count;
+            return sequenceNumber;
+        }
+    }
+
+    private long incrementCounter(int count) {
+        BasicDBObject query = new BasicDBObject("name", counterName);
+        BasicDBObject update = new BasicDBObject("$inc", new BasicDBObject("number", (long) count));
         DBObject dbObject = queueCounterCollection.findAndModify(query, null, null, false, update, true, true);
-        return (Integer) dbObject.get("number");
+        return ((Number) dbObject.get("number")).longValue();
     }
 
     @Override
@@ -63,28 +272,120 @@ public class MongoDbQueue<T> extends Queue<T> {
         return queueCollection.find().count();
     }
 
+    @Override
+    public Instant getNextVisibleAt() {
+        BasicDBObject query = new BasicDBObject(FIELD_STARTED_AT, new BasicDBObject("$eq", null))
+                .append(FIELD_VISIBLE_AT, new BasicDBObject("$gt", new Date()));
+        DBCursor cursor = queueCollection.find(query, new BasicDBObject(FIELD_VISIBLE_AT, 1))
+                .sort(new BasicDBObject(FIELD_VISIBLE_AT, 1)).limit(1);
+        try {
+            return cursor.hasNext() ? ((Date) cursor.next().get(FIELD_VISIBLE_AT)).toInstant() : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
     @Override
     public QueueItem<T> getAndLockNextItem() {
-        BasicDBObject query = new BasicDBObject(FIELD_STARTED_AT, new BasicDBObject("$eq", null));
-        BasicDBObject sort = new BasicDBObject(FIELD_CREATED_SEQUENCE, 1);
-        String startedAt = DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.now());
-        BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(FIELD_STARTED_AT, startedAt));
-        DBObject queueItem = queueCollection.findAndModify(query, null, sort, false, update, true, false);
-        if (queueItem == null) {
+        List<QueueItem<T>> queueItems = getAndLockNextItems(1);
+        if (queueItems.isEmpty()) {
             return null;
         }
+        return queueItems.get(0);
+    }
+
+    @Override
+    public List<QueueItem<T>> getAndLockNextItems(int maxItems) {
+        List<QueueItem<T>> queueItems = new ArrayList<QueueItem<T>>();
+        if (maxItems <= 0) {
+            return queueItems;
+        }
+        // items without a visible at field match the null comparison
+        BasicDBObject query = new BasicDBObject(FIELD_STARTED_AT, new BasicDBObject("$eq", null))
+                .append("$or", Arrays.asList(new BasicDBObject(FIELD_VISIBLE_AT, null),
+                        new BasicDBObject(FIELD_VISIBLE_AT, new BasicDBObject("$lte", new Date()))));
+        BasicDBObject sort = new BasicDBObject(FIELD_PRIORITY, -1).append(FIELD_CREATED_SEQUENCE, 1);
+        // groups with an item in progress are left out of the candidates rather than read and passed over
+        Set<Object> busyGroups = getBusyGroups();
+        if (!busyGroups.isEmpty()) {
+            query.append(FIELD_GROUP_KEY, new BasicDBObject("$nin", busyGroups));
+        }
+        List<Object> sequences = new ArrayList<Object>();
+        Map<Object, Long> groupHeads = new HashMap<Object, Long>();
+        DBCursor cursor = queueCollection.find(query, new BasicDBObject(FIELD_CREATED_SEQUENCE, 1).append(FIELD_GROUP_KEY, 1))
+                .sort(sort).batchSize(maxItems * CANDIDATE_FACTOR);
+        try {
+            while (cursor.hasNext() && sequences.size() < maxItems) {
+                DBObject candidate = cursor.next();
+                if (isGroupHead(candidate, groupHeads)) {
+                    sequences.add(candidate.get(FIELD_CREATED_SEQUENCE));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (sequences.isEmpty()) {
+            return queueItems;
+        }
+        // lock all candidates that are still free with one update, tagging them with a token so that only the
+        // items locked by this call are read back
+        String lockToken = UUID.randomUUID().toString();
+        String startedAt = DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.now());
+        BasicDBObject lockQuery = new BasicDBObject(FIELD_CREATED_SEQUENCE, new BasicDBObject("$in", sequences))
+                .append(FIELD_STARTED_AT, new BasicDBObject("$eq", null));
+        BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(FIELD_STARTED_AT, startedAt)
+                .append(FIELD_LOCK_TOKEN, lockToken));
+        queueCollection.update(lockQuery, update, false, true);
         //
-        Integer id = (Integer) queueItem.get(FIELD_CREATED_SEQUENCE);
-        T item = fromJson(queueItem.get(FIELD_ITEM).toString());
-        logger.info("Locked and retrieved item id:"+id+" = "+item.toString()+" from the queue.");
-        return new QueueItem<T>(new Long(id), item);
+        cursor = queueCollection.find(new BasicDBObject(FIELD_LOCK_TOKEN, lockToken)).sort(sort);
+        try {
+            while (cursor.hasNext()) {
+                DBObject queueItem = cursor.next();
+                Long id = ((Number) queueItem.get(FIELD_CREATED_SEQUENCE)).longValue();
+                queueItems.add(new QueueItem<T>(id, getStoredItem(queueItem), this));
+            }
+        } finally {
+            cursor.close();
+        }
+        logger.info("Locked and retrieved "+queueItems.size()+" items from the queue.");
+        return queueItems;
     }
 
     @Override
     public void removeItem(QueueItem<T> queueItem) {
         BasicDBObject query = new BasicDBObject(FIELD_CREATED_SEQUENCE, queueItem.getId());
         WriteResult result = queueCollection.remove(query);
-        logger.info("Removed item id:"+queueItem.getId()+" = "+queueItem.getItem().toString()+" from the queue.");
+        logger.info("Removed item id:"+queueItem.getId()+" from the queue.");
+    }
+
+    @Override
+    public void releaseItems(Collection<QueueItem<T>> queueItems) {
+        if (queueItems.isEmpty()) {
+            return;
+        }
+        List<Object> sequences = new ArrayList<Object>();
+        for (QueueItem<T> queueItem : queueItems) {
+            sequences.add(queueItem.getId());
+        }
+        BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(FIELD_STARTED_AT, null))
+                .append("$unset", new BasicDBObject(FIELD_LOCK_TOKEN, ""));
+        queueCollection.update(new BasicDBObject(FIELD_CREATED_SEQUENCE, new BasicDBObject("$in", sequences)), update, false, true);
+        signalItemsAdded();
+        logger.info("Released " + queueItems.size() + " items to the queue.");
+    }
+
+    @Override
+    public void removeItems(Collection<QueueItem<T>> queueItems) {
+        if (queueItems.isEmpty()) {
+            return;
+        }
+        List<Object> ids = new ArrayList<Object>();
+        for (QueueItem<T> queueItem : queueItems) {
+            ids.add(queueItem.getId());
+        }
+        BasicDBObject query = new BasicDBObject(FIELD_CREATED_SEQUENCE, new BasicDBObject("$in", ids));
+        queueCollection.remove(query);
+        logger.info("Removed "+queueItems.size()+" items from the queue.");
     }
 
     public static class Builder<T> {
@@ -94,6 +395,10 @@ public class MongoDbQueue<T> extends Queue<T> {
         private String queueName;
 
         private Class<T> clazzOfItem;
+        private boolean signalOnAddItem;
+        private Integer sequenceBlockSize;
+        private Codec<T> codec;
+        private Integer compressionThreshold;
 
         public Builder withClassOfItem(Class<T> clazzOfItem) {
             this.clazzOfItem = clazzOfItem;
@@ -115,6 +420,33 @@ public class MongoDbQueue<T> extends Queue<T> {
             return this;
         }
 
+        public Builder<T> withSignalOnAddItem(boolean signalOnAddItem) {
+            this.signalOnAddItem = signalOnAddItem;
+            return this;
+        }
+
+        /**
+         * Number of sequence numbers reserved from the counters collection at a time. Items added by different
+         * queue instances are then only claimed in added order within each instance's block.
+         */
+        public Builder<T> withSequenceBlockSize(int sequenceBlockSize) {
+            this.sequenceBlockSize = sequenceBlockSize;
+            return this;
+        }
+
+        public Builder<T> withCodec(Codec<T> codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * Items encoding to more than compressionThreshold bytes are stored deflated.
+         */
+        public Builder<T> withCompressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
         public MongoDbQueue<T> build() {
             if (this.databaseName == null || this.mongoClient == null || clazzOfItem == null) {
                 throw new TdbqException("Mongo client, database name, and class of item must be set.");
@@ -122,7 +454,20 @@ public class MongoDbQueue<T> extends Queue<T> {
             if (queueName == null) {
                 queueName = "queue_"+clazzOfItem.getName().replace('.', '_').toLowerCase();
             }
-            return new MongoDbQueue<T>(clazzOfItem, mongoClient, databaseName, queueName);
+            if (sequenceBlockSize == null) {
+                sequenceBlockSize = 1;
+            }
+            if (sequenceBlockSize <= 0) {
+                throw new TdbqException("Sequence block size must be greater than zero.");
+            }
+            if (codec == null) {
+                codec = new JsonCodec<T>(clazzOfItem);
+            }
+            if (compressionThreshold == null) {
+                compressionThreshold = -1;
+            }
+            return new MongoDbQueue<T>(clazzOfItem, mongoClient, databaseName, queueName, signalOnAddItem, sequenceBlockSize,
+                    codec, compressionThreshold);
         }
 
     }
@@ -0,0 +1,147 @@
+package com.github.parze;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+
+/**
+ * Tails the signal collection of a MongoDbQueue built with withSignalOnAddItem(true) and wakes the QueueExecutor as
+ * soon as a signal is inserted. When the collection can not be tailed, for example on a storage engine without
+ * capped collection support, it falls back to waking the executor every pollInterval milliseconds.
+ * <p>
+ * Signals are followed in insertion order, the order of a capped collection, rather than by their ids, since the ids
+ * carry the clocks of the nodes that added the items. The signals that exist when tailing starts are skipped.
+ */
+public class MongoDbTailableWakeUpSource implements WakeUpSource {
+
+    private Logger logger = LoggerFactory.getLogger(MongoDbTailableWakeUpSource.class);
+
+    private static final int MAX_TAIL_FAILURES = 3;
+
+    private final MongoDbQueue<?> queue;
+    private final long pollInterval;
+
+    private Thread watcher;
+    private volatile boolean shouldBeActive;
+
+    public MongoDbTailableWakeUpSource(MongoDbQueue<?> queue) {
+        this(queue, 1000);
+    }
+
+    public MongoDbTailableWakeUpSource(MongoDbQueue<?> queue, long pollInterval) {
+        this.queue = queue;
+        this.pollInterval = pollInterval;
+    }
+
+    @Override
+    public void start(final Runnable wakeUp) {
+        this.shouldBeActive = true;
+        this.watcher = new Thread() {
+            @Override
+            public void run() {
+                int failures = 0;
+                Object lastSignalId = findLastSignalId();
+                while (shouldBeActive && failures < MAX_TAIL_FAILURES) {
+                    try {
+                        lastSignalId = tail(lastSignalId, wakeUp);
+                        failures = 0;
+                    } catch (MongoException e) {
+                        failures++;
+                        logger.warn("Failed to tail signal collection of queue " + queue.getQueueName(), e);
+                        // signals may have been missed while the cursor was down
+                        wakeUp.run();
+                        waitPollInterval();
+                    }
+                }
+                if (shouldBeActive) {
+                    logger.warn("Falling back to polling queue " + queue.getQueueName() + " every " + pollInterval + " ms");
+                }
+                while (shouldBeActive) {
+                    wakeUp.run();
+                    waitPollInterval();
+                }
+            }
+        };
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+    }
+
+    private Object findLastSignalId() {
+        try {
+            DBCursor cursor = queue.getSignalCollection().find().sort(new BasicDBObject("$natural", -1)).limit(1);
+            try {
+                return cursor.hasNext() ? cursor.next().get("_id") : null;
+            } finally {
+                cursor.close();
+            }
+        } catch (MongoException e) {
+            logger.warn("Failed to read last signal of queue " + queue.getQueueName(), e);
+            return null;
+        }
+    }
+
+    private Object tail(Object lastSignalId, Runnable wakeUp) {
+        DBCollection signalCollection = queue.getSignalCollection();
+        if (!signalCollection.isCapped()) {
+            throw new MongoException("Signal collection " + signalCollection.getName() + " is not capped.");
+        }
+        if (lastSignalId != null && signalCollection.findOne(new BasicDBObject("_id", lastSignalId)) == null) {
+            // the last signal seen has been overwritten in the capped collection, so signals may have been missed
+            wakeUp.run();
+            lastSignalId = findLastSignalId();
+        }
+        DBCursor cursor = signalCollection.find()
+                .sort(new BasicDBObject("$natural", 1))
+                .addOption(Bytes.QUERYOPTION_TAILABLE)
+                .addOption(Bytes.QUERYOPTION_AWAITDATA);
+        try {
+            lastSignalId = followSignals(cursor, lastSignalId, wakeUp);
+        } finally {
+            cursor.close();
+        }
+        if (shouldBeActive) {
+            // a tailable cursor on an empty capped collection dies right away
+            waitPollInterval();
+        }
+        return lastSignalId;
+    }
+
+    /**
+     * Wakes up once for every signal after the one with lastSignalId, or for every signal when lastSignalId is null,
+     * and returns the id of the last signal seen.
+     */
+    static Object followSignals(Iterator<DBObject> signals, Object lastSignalId, Runnable wakeUp) {
+        boolean skipping = lastSignalId != null;
+        while (signals.hasNext()) {
+            Object signalId = signals.next().get("_id");
+            if (skipping) {
+                skipping = !signalId.equals(lastSignalId);
+                continue;
+            }
+            lastSignalId = signalId;
+            wakeUp.run();
+        }
+        return lastSignalId;
+    }
+
+    private void waitPollInterval() {
+        try {
+            Thread.sleep(pollInterval);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    @Override
+    public void stop() {
+        this.shouldBeActive = false;
+        this.watcher.interrupt();
+    }
+
+}
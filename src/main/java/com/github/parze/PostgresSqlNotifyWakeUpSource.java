@@ -0,0 +1,101 @@
+package com.github.parze;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Keeps a connection listening on the channel a RelationalDatabaseQueue built with withNotifyOnAddItem(true) notifies
+ * when items are added, and wakes the QueueExecutor for every notification received.
+ */
+public class PostgresSqlNotifyWakeUpSource implements WakeUpSource {
+
+    private Logger logger = LoggerFactory.getLogger(PostgresSqlNotifyWakeUpSource.class);
+
+    private static final int NOTIFICATION_TIMEOUT = 500;
+
+    private final DataSource dataSource;
+    private final String channelName;
+    private final long reconnectInterval;
+
+    private Thread listener;
+    private volatile boolean shouldBeActive;
+
+    public PostgresSqlNotifyWakeUpSource(DataSource dataSource, String channelName) {
+        this(dataSource, channelName, 5000);
+    }
+
+    public PostgresSqlNotifyWakeUpSource(DataSource dataSource, String channelName, long reconnectInterval) {
+        this.dataSource = dataSource;
+        this.channelName = channelName;
+        this.reconnectInterval = reconnectInterval;
+    }
+
+    @Override
+    public void start(final Runnable wakeUp) {
+        this.shouldBeActive = true;
+        this.listener = new Thread() {
+            @Override
+            public void run() {
+                logger.info("Starting to listen on channel " + channelName);
+                while (shouldBeActive) {
+                    try {
+                        listen(wakeUp);
+                    } catch (SQLException e) {
+                        logger.error("Listening on channel " + channelName + " failed, reconnecting.", e);
+                        // notifications may have been missed while the connection was down
+                        wakeUp.run();
+                        try {
+                            Thread.sleep(reconnectInterval);
+                        } catch (InterruptedException ie) {
+                        }
+                    }
+                }
+            }
+        };
+        this.listener.setDaemon(true);
+        this.listener.start();
+    }
+
+    private void listen(Runnable wakeUp) throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            connection.setAutoCommit(true);
+            Statement statement = connection.createStatement();
+            statement.execute("Listen " + channelName);
+            statement.close();
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            while (shouldBeActive) {
+                PGNotification[] notifications = pgConnection.getNotifications(NOTIFICATION_TIMEOUT);
+                if (notifications != null && notifications.length > 0) {
+                    wakeUp.run();
+                }
+            }
+        } finally {
+            try {
+                // the connection may go back to a pool, so it should not keep listening
+                Statement statement = connection.createStatement();
+                statement.execute("Unlisten " + channelName);
+                statement.close();
+            } catch (SQLException e) {
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void stop() {
+        this.shouldBeActive = false;
+        try {
+            this.listener.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+}
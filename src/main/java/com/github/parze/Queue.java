@@ -1,52 +1,326 @@
 package com.github.parze;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 public abstract class Queue<T> {
 
     private Logger logger = LoggerFactory.getLogger(Queue.class);
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte PAYLOAD_FORMAT_PLAIN = 0;
+    private static final byte PAYLOAD_FORMAT_DEFLATE = 1;
+    private static final int ASYNC_THREADS = 4;
+    private static final int ASYNC_QUEUE_CAPACITY = 1024;
+
     private String queueName;
     private Class<T> clazzOfItem;
-    private ObjectMapper mapper;
+    private Codec<T> codec;
+    private int compressionThreshold;
+    private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+    private volatile Executor asyncExecutor;
 
     protected Queue(Class<T> clazzOfItem, String queueName) {
-        this.mapper = new ObjectMapper();
+        this(clazzOfItem, queueName, new JsonCodec<T>(clazzOfItem), -1);
+    }
+
+    /**
+     * Items encoding to more than compressionThreshold bytes are stored deflated, a negative threshold turns
+     * compression off.
+     */
+    protected Queue(Class<T> clazzOfItem, String queueName, Codec<T> codec, int compressionThreshold) {
         this.clazzOfItem = clazzOfItem;
         this.queueName = queueName;
+        this.codec = codec;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public CompressionStatistics getCompressionStatistics() {
+        return compressionStatistics;
     }
 
     public String getQueueName() {
         return queueName;
     }
 
-    public abstract void addItem(T item);
+    public void addItem(T item) {
+        addItem(item, new AddItemOptions());
+    }
+
+    public void addItem(T item, int priority) {
+        addItem(item, new AddItemOptions().withPriority(priority));
+    }
+
+    /**
+     * Adds an item that is processed after all items added before it with the same group key.
+     */
+    public void addItem(T item, String groupKey) {
+        addItem(item, new AddItemOptions().withGroupKey(groupKey));
+    }
+
+    /**
+     * Adds an item that is not claimed before notBefore.
+     */
+    public void addItem(T item, Instant notBefore) {
+        addItem(item, new AddItemOptions().withNotBefore(notBefore));
+    }
+
+    public abstract void addItem(T item, AddItemOptions options);
+
+    public void addItems(Collection<T> items) {
+        addItems(items, new AddItemOptions());
+    }
+
+    public abstract void addItems(Collection<T> items, AddItemOptions options);
 
-    protected String toJson(T item) {
+    /**
+     * Returns the form an item is stored in, a String for text codecs and a byte array starting with a format byte
+     * for binary codecs and for compressed items.
+     */
+    protected Object toStoredForm(T item) {
+        byte[] data = codec.encode(item);
+        if (compressionThreshold >= 0 && data.length > compressionThreshold) {
+            byte[] payload = compress(data);
+            if (payload != null) {
+                return payload;
+            }
+        }
+        if (!codec.isBinary()) {
+            return new String(data, UTF_8);
+        }
+        byte[] payload = new byte[data.length + 1];
+        payload[0] = PAYLOAD_FORMAT_PLAIN;
+        System.arraycopy(data, 0, payload, 1, data.length);
+        return payload;
+    }
+
+    protected T fromStoredForm(Object storedItem) {
+        return codec.decode(toEncodedForm(storedItem));
+    }
+
+    /**
+     * Returns the stored form of an item as encoded by the codec, without format byte and decompressed.
+     */
+    protected byte[] toEncodedForm(Object storedItem) {
+        if (storedItem instanceof String) {
+            return ((String) storedItem).getBytes(UTF_8);
+        }
+        byte[] payload = (byte[]) storedItem;
+        if (payload.length > 0 && payload[0] == PAYLOAD_FORMAT_PLAIN) {
+            return Arrays.copyOfRange(payload, 1, payload.length);
+        }
+        if (payload.length > 0 && payload[0] == PAYLOAD_FORMAT_DEFLATE) {
+            return decompress(payload);
+        }
+        throw new TdbqException("Unknown payload format of item in queue " + queueName + ".");
+    }
+
+    /**
+     * Returns the deflated data behind a format byte, or null when deflating does not make the data smaller.
+     */
+    private byte[] compress(byte[] data) {
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
         try {
-            return mapper.writeValueAsString(item);
-        } catch (IOException e) {
-            throw new TdbqException("Failed to parse item to Json.", e);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            out.write(PAYLOAD_FORMAT_DEFLATE);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() > data.length) {
+                    return null;
+                }
+            }
+            byte[] payload = out.toByteArray();
+            compressionStatistics.compressed(data.length, payload.length, System.nanoTime() - start);
+            return payload;
+        } finally {
+            deflater.end();
         }
     }
 
-    protected T fromJson(String str) {
+    private byte[] decompress(byte[] payload) {
+        long start = System.nanoTime();
+        Inflater inflater = new Inflater();
         try {
-            return mapper.readValue(str, this.clazzOfItem);
-        } catch (IOException e) {
-            throw new TdbqException("Failed to parse item to Json.", e);
+            inflater.setInput(payload, 1, payload.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new TdbqException("Compressed payload of item in queue " + queueName + " is truncated.");
+                }
+                out.write(buffer, 0, length);
+            }
+            compressionStatistics.decompressed(System.nanoTime() - start);
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new TdbqException("Failed to decompress payload of item in queue " + queueName + ".", e);
+        } finally {
+            inflater.end();
         }
     }
 
     public abstract long getQueueSize();
 
+    /**
+     * Returns the earliest time an item added with a not before time that has not passed yet becomes visible, or null
+     * when there is no such item. Queues that do not support not before times always return null.
+     */
+    public Instant getNextVisibleAt() {
+        return null;
+    }
+
+    /**
+     * The executor the async variants of the queue methods without an executor argument block on, by default a pool
+     * of four daemon threads per queue with room for 1024 waiting calls. When the pool and its waiting room are full
+     * the returned futures complete exceptionally with a RejectedExecutionException instead of blocking the caller.
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    protected Executor getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            synchronized (this) {
+                if (asyncExecutor == null) {
+                    ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 60,
+                            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(ASYNC_QUEUE_CAPACITY), new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "async-" + queueName);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    threadPoolExecutor.allowCoreThreadTimeOut(true);
+                    asyncExecutor = threadPoolExecutor;
+                }
+            }
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Runs the call on the executor. A call the executor rejects completes the future exceptionally with the
+     * RejectedExecutionException.
+     */
+    protected <R> CompletableFuture<R> supplyAsync(final Callable<R> call, Executor executor) {
+        final CompletableFuture<R> future = new CompletableFuture<R>();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        future.complete(call.call());
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<Void> addItemAsync(T item) {
+        return addItemAsync(item, new AddItemOptions());
+    }
+
+    public CompletableFuture<Void> addItemAsync(T item, AddItemOptions options) {
+        return addItemAsync(item, options, getAsyncExecutor());
+    }
+
+    public CompletableFuture<Void> addItemAsync(final T item, final AddItemOptions options, Executor executor) {
+        return supplyAsync(new Callable<Void>() {
+            public Void call() {
+                addItem(item, options);
+                return null;
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<Long> getQueueSizeAsync() {
+        return getQueueSizeAsync(getAsyncExecutor());
+    }
+
+    public CompletableFuture<Long> getQueueSizeAsync(Executor executor) {
+        return supplyAsync(new Callable<Long>() {
+            public Long call() {
+                return getQueueSize();
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<QueueItem<T>> getAndLockNextItemAsync() {
+        return getAndLockNextItemAsync(getAsyncExecutor());
+    }
+
+    public CompletableFuture<QueueItem<T>> getAndLockNextItemAsync(Executor executor) {
+        return supplyAsync(new Callable<QueueItem<T>>() {
+            public QueueItem<T> call() {
+                return getAndLockNextItem();
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<List<QueueItem<T>>> getAndLockNextItemsAsync(int maxItems) {
+        return getAndLockNextItemsAsync(maxItems, getAsyncExecutor());
+    }
+
+    public CompletableFuture<List<QueueItem<T>>> getAndLockNextItemsAsync(final int maxItems, Executor executor) {
+        return supplyAsync(new Callable<List<QueueItem<T>>>() {
+            public List<QueueItem<T>> call() {
+                return getAndLockNextItems(maxItems);
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<Void> removeItemAsync(QueueItem<T> queueItem) {
+        return removeItemAsync(queueItem, getAsyncExecutor());
+    }
+
+    public CompletableFuture<Void> removeItemAsync(final QueueItem<T> queueItem, Executor executor) {
+        return supplyAsync(new Callable<Void>() {
+            public Void call() {
+                removeItem(queueItem);
+                return null;
+            }
+        }, executor);
+    }
+
     public abstract QueueItem<T> getAndLockNextItem();
 
+    public abstract List<QueueItem<T>> getAndLockNextItems(int maxItems);
+
     public abstract void removeItem(QueueItem<T> queueItem);
 
+    public abstract void removeItems(Collection<QueueItem<T>> queueItems);
+
+    /**
+     * Makes items that were claimed but will not be processed claimable again.
+     */
+    public abstract void releaseItems(Collection<QueueItem<T>> queueItems);
+
 }
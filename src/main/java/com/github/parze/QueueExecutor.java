@@ -3,87 +3,329 @@ package com.github.parze;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class QueueExecutor<T> {
 
     private Logger logger = LoggerFactory.getLogger(QueueExecutor.class);
 
+    private static final long TIMER_TICK_DURATION = 10;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
     private final Queue<T> queue;
     private final RunnableCreator<T> runnableCreator;
     private final long checkQueueInterval;
+    private final int batchSize;
+    private final Semaphore prefetchCredits;
+    private final Semaphore concurrentTasks;
+    private final AdaptiveConcurrencyLimit adaptiveConcurrencyLimit;
+    private final long minPollInterval;
+    private final long maxPollInterval;
+    private final AtomicLong pollCount = new AtomicLong();
+    private final AtomicLong emptyPollCount = new AtomicLong();
+    private int consecutiveEmptyPolls;
 
     private final ExecutorService executorService;
     private final CallBackWhenDone<T> callBackWhenDone;
+    private final QueueItemAcknowledger<T> queueItemAcknowledger;
+    private final WakeUpSource wakeUpSource;
+    private final TimerWheel timerWheel;
     private final Thread queueManager;
-    private final Object dequeueThreadIsWorkingLock = new Object();
-    private boolean shouldBeActive = true;
+    // a lock rather than synchronized so that virtual threads waking the queue manager do not pin their carrier
+    private final ReentrantLock dequeueThreadIsWorkingLock = new ReentrantLock();
+    private final Condition itemWasAdded = dequeueThreadIsWorkingLock.newCondition();
+    private volatile boolean shouldBeActive = true;
+    private final AtomicBoolean wokenByWakeUpSource = new AtomicBoolean();
 
     public QueueExecutor(Queue<T> queue, RunnableCreator<T> runnableCreator, int threadPoolSize, final long checkQueueInterval) {
+        this(queue, runnableCreator, threadPoolSize, checkQueueInterval, 1, 1, 0, null, 0, false, null, 0, 0);
+    }
+
+    /**
+     * A prefetchLimit greater than zero caps the number of items this executor has claimed from the queue but not yet
+     * started processing, so that items are left in the queue for other nodes while all threads are busy. With
+     * virtualThreads every item runs on a new virtual thread and threadPoolSize limits the number of items processed
+     * at the same time. An adaptiveConcurrencyLimit takes the place of threadPoolSize and limits the number of items
+     * processed at the same time to a limit adjusted from their processing latency. A maxPollInterval greater than
+     * zero replaces checkQueueInterval with polling that backs off from minPollInterval to maxPollInterval while the
+     * queue is empty.
+     */
+    public QueueExecutor(Queue<T> queue, RunnableCreator<T> runnableCreator, int threadPoolSize, final long checkQueueInterval,
+                         int batchSize, int ackBatchSize, long ackFlushInterval, WakeUpSource wakeUpSource, int prefetchLimit,
+                         boolean virtualThreads, AdaptiveConcurrencyLimit adaptiveConcurrencyLimit, long minPollInterval,
+                         long maxPollInterval) {
         this.queue = queue;
         this.runnableCreator = runnableCreator;
         this.checkQueueInterval = checkQueueInterval;
+        this.batchSize = batchSize;
+        this.prefetchCredits = prefetchLimit > 0 ? new Semaphore(prefetchLimit) : null;
         //
-        this.executorService = Executors.newFixedThreadPool(threadPoolSize);
-        this.callBackWhenDone = new CallBackWhenDone<T>() {
-            public void done(QueueItem<T> queueItem) {
-                QueueExecutor.this.queue.removeItem(queueItem);
+        this.adaptiveConcurrencyLimit = adaptiveConcurrencyLimit;
+        this.minPollInterval = minPollInterval;
+        this.maxPollInterval = maxPollInterval;
+        if (adaptiveConcurrencyLimit != null) {
+            threadPoolSize = adaptiveConcurrencyLimit.getMaxLimit();
+        }
+        if (virtualThreads) {
+            this.executorService = createVirtualThreadExecutor(threadPoolSize);
+            this.concurrentTasks = adaptiveConcurrencyLimit == null ? new Semaphore(threadPoolSize) : null;
+        } else {
+            this.executorService = Executors.newFixedThreadPool(threadPoolSize);
+            this.concurrentTasks = null;
+        }
+        if (ackBatchSize > 1) {
+            this.queueItemAcknowledger = new QueueItemAcknowledger<T>(queue, ackBatchSize, ackFlushInterval);
+            this.callBackWhenDone = new CallBackWhenDone<T>() {
+                public void done(QueueItem<T> queueItem) {
+                    queueItemAcknowledger.acknowledge(queueItem);
+                }
+            };
+        } else {
+            this.queueItemAcknowledger = null;
+            this.callBackWhenDone = new CallBackWhenDone<T>() {
+                public void done(QueueItem<T> queueItem) {
+                    QueueExecutor.this.queue.removeItem(queueItem);
+                }
+            };
+        }
+        // wakes the queue manager when items added with a not before time become visible
+        this.timerWheel = new TimerWheel(queue.getQueueName(), TIMER_TICK_DURATION, TIMER_WHEEL_SIZE, new Runnable() {
+            public void run() {
+                notifyThatItemWasAddedToQueueForProcessing();
             }
-        };
-        //
+        });
         this.queueManager = new Thread() {
             @Override
             public void run() {
                 logger.info("Starting queue manager");
                 while (shouldBeActive) {
-                    synchronized (dequeueThreadIsWorkingLock) {
-                        try {
-                            QueueItem<T> queueItem = QueueExecutor.this.queue.getAndLockNextItem();
-                            while (queueItem != null) {
-                                Runnable runnable = QueueExecutor.this.runnableCreator.createRunnable(queueItem,
-                                        callBackWhenDone);
-                                executorService.execute(runnable);
-                                queueItem = QueueExecutor.this.queue.getAndLockNextItem();
+                    int credits;
+                    try {
+                        // waits outside the lock for a worker to start an item, notifications are not lost since
+                        // the queue is checked once credits are acquired
+                        credits = acquirePrefetchCredits();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    dequeueThreadIsWorkingLock.lock();
+                    int claimed = 0;
+                    try {
+                        if (shouldBeActive) {
+                            List<QueueItem<T>> queueItems = QueueExecutor.this.queue.getAndLockNextItems(credits);
+                            claimed = queueItems.size();
+                            pollCount.incrementAndGet();
+                            for (QueueItem<T> queueItem : queueItems) {
+                                executorService.execute(createRunnable(queueItem));
                             }
-                            if (checkQueueInterval > 0) {
-                                dequeueThreadIsWorkingLock.wait(checkQueueInterval);
+                            if (claimed < credits) {
+                                scheduleNextVisibleItem();
+                            }
+                            if (claimed > 0) {
+                                consecutiveEmptyPolls = 0;
                             } else {
-                                dequeueThreadIsWorkingLock.wait();
+                                emptyPollCount.incrementAndGet();
+                                consecutiveEmptyPolls++;
+                                if (maxPollInterval > 0) {
+                                    itemWasAdded.await(getNextPollInterval(), TimeUnit.MILLISECONDS);
+                                } else if (checkQueueInterval > 0) {
+                                    itemWasAdded.await(checkQueueInterval, TimeUnit.MILLISECONDS);
+                                } else {
+                                    itemWasAdded.await();
+                                }
                             }
-                        } catch (InterruptedException e) {}
+                        }
+                    } catch (InterruptedException e) {
+                    } finally {
+                        dequeueThreadIsWorkingLock.unlock();
+                        releasePrefetchCredits(credits - claimed);
                     }
                 }
             }
         };
         this.queueManager.start();
+        this.wakeUpSource = wakeUpSource;
+        if (this.wakeUpSource != null) {
+            this.wakeUpSource.start(new Runnable() {
+                public void run() {
+                    wokenByWakeUpSource.set(true);
+                    notifyThatItemWasAddedToQueueForProcessing();
+                }
+            });
+        }
+    }
+
+    /**
+     * Falls back to a fixed pool of threadPoolSize threads, since platform threads started per item would all be
+     * created up front and wait for a permit.
+     */
+    private ExecutorService createVirtualThreadExecutor(int threadPoolSize) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            logger.warn("Virtual threads are not available in this JVM, falling back to a pool of " + threadPoolSize + " threads.");
+            return Executors.newFixedThreadPool(threadPoolSize);
+        }
     }
 
+    /**
+     * Doubles the interval from minPollInterval for every empty poll in a row up to maxPollInterval, and picks a
+     * random interval between half of it and all of it so that nodes polling the same queue spread out.
+     */
+    private long getNextPollInterval() {
+        long interval = maxPollInterval;
+        if (consecutiveEmptyPolls <= 62 && minPollInterval < (maxPollInterval >> (consecutiveEmptyPolls - 1))) {
+            interval = minPollInterval << (consecutiveEmptyPolls - 1);
+        }
+        long jittered = interval / 2 + ThreadLocalRandom.current().nextLong(interval / 2 + 1);
+        return Math.max(Math.max(minPollInterval, jittered), 1);
+    }
+
+    /**
+     * Looks up when the next delayed item becomes visible while nothing is scheduled on the timer wheel, so that polls
+     * that come back short do not each cost another query. After a wake-up source signalled items added by another
+     * node it is looked up anyway, since they may become visible before the earliest scheduled deadline.
+     */
+    private void scheduleNextVisibleItem() {
+        boolean woken = wokenByWakeUpSource.getAndSet(false);
+        long earliestDeadline = timerWheel.getEarliestDeadline();
+        if (earliestDeadline != Long.MAX_VALUE && !woken) {
+            return;
+        }
+        Instant nextVisibleAt = queue.getNextVisibleAt();
+        if (nextVisibleAt != null && nextVisibleAt.toEpochMilli() < earliestDeadline) {
+            timerWheel.schedule(nextVisibleAt.toEpochMilli());
+        }
+    }
+
+    public long getPollCount() {
+        return pollCount.get();
+    }
+
+    public long getEmptyPollCount() {
+        return emptyPollCount.get();
+    }
+
+    private int acquirePrefetchCredits() throws InterruptedException {
+        if (prefetchCredits == null) {
+            return batchSize;
+        }
+        prefetchCredits.acquire();
+        int credits = 1;
+        while (credits < batchSize && prefetchCredits.tryAcquire()) {
+            credits++;
+        }
+        return credits;
+    }
+
+    private void releasePrefetchCredits(int credits) {
+        if (prefetchCredits != null && credits > 0) {
+            prefetchCredits.release(credits);
+        }
+    }
+
+    private Runnable createRunnable(QueueItem<T> queueItem) {
+        final Runnable runnable = runnableCreator.createRunnable(queueItem, callBackWhenDone);
+        if (prefetchCredits == null && concurrentTasks == null && adaptiveConcurrencyLimit == null) {
+            return runnable;
+        }
+        return new Runnable() {
+            public void run() {
+                if (concurrentTasks != null) {
+                    concurrentTasks.acquireUninterruptibly();
+                }
+                if (adaptiveConcurrencyLimit != null) {
+                    adaptiveConcurrencyLimit.acquire();
+                }
+                long start = System.nanoTime();
+                try {
+                    releasePrefetchCredits(1);
+                    runnable.run();
+                } finally {
+                    if (adaptiveConcurrencyLimit != null) {
+                        adaptiveConcurrencyLimit.release(System.nanoTime() - start);
+                    }
+                    if (concurrentTasks != null) {
+                        concurrentTasks.release();
+                    }
+                }
+            }
+        };
+    }
 
     public void addItem(T item) {
         this.queue.addItem(item);
         notifyThatItemWasAddedToQueueForProcessing();
     }
 
+    public void addItem(T item, int priority) {
+        this.queue.addItem(item, priority);
+        notifyThatItemWasAddedToQueueForProcessing();
+    }
+
+    public void addItem(T item, String groupKey) {
+        this.queue.addItem(item, groupKey);
+        notifyThatItemWasAddedToQueueForProcessing();
+    }
+
+    /**
+     * Adds an item that is not claimed before notBefore, the queue manager is woken when it becomes visible.
+     */
+    public void addItem(T item, Instant notBefore) {
+        this.queue.addItem(item, notBefore);
+        timerWheel.schedule(notBefore.toEpochMilli());
+    }
+
+    public void addItems(Collection<T> items) {
+        this.queue.addItems(items);
+        notifyThatItemWasAddedToQueueForProcessing();
+    }
+
     public void notifyThatItemWasAddedToQueueForProcessing() {
-        synchronized (dequeueThreadIsWorkingLock) {
-            dequeueThreadIsWorkingLock.notify();
+        dequeueThreadIsWorkingLock.lock();
+        try {
+            itemWasAdded.signal();
+        } finally {
+            dequeueThreadIsWorkingLock.unlock();
         }
     }
 
     public void shutdown() {
-        synchronized (dequeueThreadIsWorkingLock) {
-            logger.info("Stopping queue manager ...");
-            this.shouldBeActive = false;
-            dequeueThreadIsWorkingLock.notify();
-            this.executorService.shutdown();
-            try {
-                this.executorService.awaitTermination(60, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-            }
-            logger.info("Queue manager stopped");
+        if (this.wakeUpSource != null) {
+            this.wakeUpSource.stop();
+        }
+        this.timerWheel.shutdown();
+        this.shouldBeActive = false;
+        // lets the queue manager out of waiting for credits
+        releasePrefetchCredits(batchSize);
+        logger.info("Stopping queue manager ...");
+        dequeueThreadIsWorkingLock.lock();
+        try {
+            itemWasAdded.signal();
+        } finally {
+            dequeueThreadIsWorkingLock.unlock();
         }
+        this.executorService.shutdown();
+        // waits without the lock, running tasks that add items take it to notify the queue manager
+        try {
+            this.executorService.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.queueItemAcknowledger != null) {
+            this.queueItemAcknowledger.shutdown();
+        }
+        logger.info("Queue manager stopped");
     }
 
     public Queue<T> getQueue() {
@@ -105,6 +347,15 @@ public class QueueExecutor<T> {
         private RunnableCreator<T> runnableCreator;
         private Long checkQueueInterval;
         private Integer threadPoolSize;
+        private Integer batchSize;
+        private Integer ackBatchSize;
+        private Long ackFlushInterval;
+        private WakeUpSource wakeUpSource;
+        private Integer prefetchLimit;
+        private boolean virtualThreads;
+        private AdaptiveConcurrencyLimit adaptiveConcurrencyLimit;
+        private Long minPollInterval;
+        private Long maxPollInterval;
 
         public Builder withQueue(Queue<T> queue) {
             this.queue = queue;
@@ -126,6 +377,61 @@ public class QueueExecutor<T> {
             return this;
         }
 
+        public Builder<T> withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder<T> withAckBatchSize(int ackBatchSize) {
+            this.ackBatchSize = ackBatchSize;
+            return this;
+        }
+
+        public Builder<T> withAckFlushInterval(long ackFlushInterval) {
+            this.ackFlushInterval = ackFlushInterval;
+            return this;
+        }
+
+        public Builder<T> withWakeUpSource(WakeUpSource wakeUpSource) {
+            this.wakeUpSource = wakeUpSource;
+            return this;
+        }
+
+        /**
+         * Caps the number of items claimed from the queue but not yet started, no cap by default.
+         */
+        public Builder<T> withPrefetchLimit(int prefetchLimit) {
+            this.prefetchLimit = prefetchLimit;
+            return this;
+        }
+
+        /**
+         * Runs every item on a new virtual thread when the JVM supports them, the thread pool size then limits the
+         * number of items processed at the same time.
+         */
+        public Builder<T> withVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Adjusts the number of items processed at the same time at runtime instead of using the thread pool size.
+         */
+        public Builder<T> withAdaptiveConcurrencyLimit(AdaptiveConcurrencyLimit adaptiveConcurrencyLimit) {
+            this.adaptiveConcurrencyLimit = adaptiveConcurrencyLimit;
+            return this;
+        }
+
+        /**
+         * Polls the queue again right after items were claimed, and backs off exponentially with jitter from
+         * minPollInterval to maxPollInterval milliseconds while it is empty. Replaces the check queue interval.
+         */
+        public Builder<T> withAdaptivePolling(long minPollInterval, long maxPollInterval) {
+            this.minPollInterval = minPollInterval;
+            this.maxPollInterval = maxPollInterval;
+            return this;
+        }
+
         public QueueExecutor<T> build() {
             if (this.queue == null) {
                 throw new TdbqException("Queue must be set.");
@@ -136,7 +442,36 @@ public class QueueExecutor<T> {
             if (threadPoolSize == null) {
                 threadPoolSize = 10;
             }
-            return new QueueExecutor<T>(queue, this.runnableCreator, this.threadPoolSize, this.checkQueueInterval);
+            if (batchSize == null) {
+                batchSize = 1;
+            }
+            if (batchSize <= 0) {
+                throw new TdbqException("Batch size must be greater than zero.");
+            }
+            if (ackBatchSize == null) {
+                ackBatchSize = 1;
+            }
+            if (ackFlushInterval == null) {
+                ackFlushInterval = 100L;
+            }
+            if (ackFlushInterval <= 0) {
+                throw new TdbqException("Ack flush interval must be greater than zero.");
+            }
+            if (prefetchLimit == null) {
+                prefetchLimit = 0;
+            }
+            if (prefetchLimit < 0) {
+                throw new TdbqException("Prefetch limit must not be negative.");
+            }
+            if (maxPollInterval == null) {
+                minPollInterval = 0L;
+                maxPollInterval = 0L;
+            } else if (minPollInterval <= 0 || maxPollInterval < minPollInterval) {
+                throw new TdbqException("Poll intervals must satisfy 0 < min poll interval <= max poll interval.");
+            }
+            return new QueueExecutor<T>(queue, this.runnableCreator, this.threadPoolSize, this.checkQueueInterval,
+                    this.batchSize, this.ackBatchSize, this.ackFlushInterval, this.wakeUpSource, this.prefetchLimit,
+                    this.virtualThreads, this.adaptiveConcurrencyLimit, this.minPollInterval, this.maxPollInterval);
         }
 
     }
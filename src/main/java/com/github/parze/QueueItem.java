@@ -1,13 +1,29 @@
 package com.github.parze;
 
+/**
+ * An item taken from a queue. Items read from a database are decoded the first time getItem() is called, so that
+ * the decoding happens on the thread processing the item rather than on the thread taking items from the queue.
+ */
 public class QueueItem<T> {
 
     private final Long id;
-    private final T item;
+    private final Object storedItem;
+    private final Queue<T> queue;
+    private T item;
+    private volatile boolean decoded;
 
     public QueueItem(Long id, T item) {
         this.id = id;
         this.item = item;
+        this.storedItem = null;
+        this.queue = null;
+        this.decoded = true;
+    }
+
+    QueueItem(Long id, Object storedItem, Queue<T> queue) {
+        this.id = id;
+        this.storedItem = storedItem;
+        this.queue = queue;
     }
 
     public Long getId() {
@@ -15,6 +31,33 @@ public class QueueItem<T> {
     }
 
     public T getItem() {
+        if (!decoded) {
+            synchronized (this) {
+                if (!decoded) {
+                    item = queue.fromStoredForm(storedItem);
+                    decoded = true;
+                }
+            }
+        }
         return item;
     }
+
+    /**
+     * Returns the item as it was read from the database, a String or a byte array depending on the codec and
+     * compression, or null if the item was not read from a database.
+     */
+    public Object getStoredItem() {
+        return storedItem;
+    }
+
+    /**
+     * Returns the item encoded by the codec of the queue without decoding it, or null if the item was not read from
+     * a database.
+     */
+    public byte[] getEncodedItem() {
+        if (storedItem == null) {
+            return null;
+        }
+        return queue.toEncodedForm(storedItem);
+    }
 }
@@ -0,0 +1,131 @@
+package com.github.parze;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers acknowledged queue items and removes them from the queue in bulk, either when maxBatchSize items are
+ * buffered or when the oldest buffered item has waited maxDelay milliseconds. A batch that fails to be removed is
+ * retried a few times and then removed item by item, items that still fail are kept as unremoved items and make
+ * shutdown fail.
+ */
+public class QueueItemAcknowledger<T> {
+
+    private Logger logger = LoggerFactory.getLogger(QueueItemAcknowledger.class);
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final Queue<T> queue;
+    private final int maxBatchSize;
+    private final long maxDelay;
+
+    private final BlockingQueue<QueueItem<T>> acknowledgedItems = new LinkedBlockingQueue<QueueItem<T>>();
+    private final List<QueueItem<T>> unremovedItems = Collections.synchronizedList(new ArrayList<QueueItem<T>>());
+    private volatile RuntimeException lastFailure;
+    private final Thread flusher;
+    private volatile boolean shouldBeActive = true;
+
+    public QueueItemAcknowledger(Queue<T> queue, int maxBatchSize, long maxDelay) {
+        this.queue = queue;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.flusher = new Thread() {
+            @Override
+            public void run() {
+                while (shouldBeActive || !acknowledgedItems.isEmpty()) {
+                    try {
+                        flushNextBatch();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        };
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public void acknowledge(QueueItem<T> queueItem) {
+        acknowledgedItems.add(queueItem);
+    }
+
+    private void flushNextBatch() throws InterruptedException {
+        QueueItem<T> queueItem = acknowledgedItems.poll(maxDelay, TimeUnit.MILLISECONDS);
+        if (queueItem == null) {
+            return;
+        }
+        List<QueueItem<T>> batch = new ArrayList<QueueItem<T>>();
+        batch.add(queueItem);
+        long flushAt = System.currentTimeMillis() + maxDelay;
+        while (batch.size() < maxBatchSize) {
+            acknowledgedItems.drainTo(batch, maxBatchSize - batch.size());
+            long timeLeft = flushAt - System.currentTimeMillis();
+            if (batch.size() >= maxBatchSize || timeLeft <= 0 || !shouldBeActive) {
+                break;
+            }
+            queueItem = acknowledgedItems.poll(timeLeft, TimeUnit.MILLISECONDS);
+            if (queueItem == null) {
+                break;
+            }
+            batch.add(queueItem);
+        }
+        removeItems(batch);
+    }
+
+    private void removeItems(List<QueueItem<T>> batch) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                queue.removeItems(batch);
+                return;
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                logger.warn("Failed to remove " + batch.size() + " acknowledged items from queue " + queue.getQueueName() +
+                        ", attempt " + attempt + " of " + MAX_ATTEMPTS, e);
+            }
+            if (attempt < MAX_ATTEMPTS) {
+                try {
+                    Thread.sleep(maxDelay * attempt);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+        // an item that cannot be removed should not keep the others of its batch claimed
+        for (QueueItem<T> queueItem : batch) {
+            try {
+                queue.removeItem(queueItem);
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                unremovedItems.add(queueItem);
+                logger.error("Failed to remove acknowledged item " + queueItem.getId() + " from queue " + queue.getQueueName(), e);
+            }
+        }
+    }
+
+    /**
+     * The acknowledged items that could not be removed from the queue and stay claimed there.
+     */
+    public List<QueueItem<T>> getUnremovedItems() {
+        synchronized (unremovedItems) {
+            return new ArrayList<QueueItem<T>>(unremovedItems);
+        }
+    }
+
+    public void shutdown() {
+        this.shouldBeActive = false;
+        try {
+            this.flusher.join();
+        } catch (InterruptedException e) {
+        }
+        if (!unremovedItems.isEmpty()) {
+            throw new TdbqException(unremovedItems.size() + " acknowledged items could not be removed from queue " +
+                    queue.getQueueName() + ".", lastFailure);
+        }
+    }
+
+}
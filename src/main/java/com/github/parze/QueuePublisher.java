@@ -0,0 +1,189 @@
+package com.github.parze;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the items of a queue to reactive streams subscribers. Items are only claimed from the queue when a
+ * subscriber has requested them, at most batchSize at a time, and the queue is polled every pollInterval
+ * milliseconds while it is empty and items are requested. Subscribers remove the items from the queue when they are
+ * done with them. With Java 9 and later the publisher can be adapted to java.util.concurrent.Flow with
+ * FlowAdapters.toFlowPublisher.
+ * <p>
+ * By default the subscriptions are served one after the other by a single thread of the publisher. A scheduler with
+ * more threads passed to the constructor serves them concurrently, each subscription still delivers its items to its
+ * subscriber from one thread at a time. Items claimed after a subscription is cancelled are released back to the
+ * queue.
+ */
+public class QueuePublisher<T> implements Publisher<QueueItem<T>> {
+
+    private Logger logger = LoggerFactory.getLogger(QueuePublisher.class);
+
+    private final Queue<T> queue;
+    private final int batchSize;
+    private final long pollInterval;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private volatile boolean shutdown;
+
+    public QueuePublisher(Queue<T> queue) {
+        this(queue, 10, 1000);
+    }
+
+    public QueuePublisher(final Queue<T> queue, int batchSize, long pollInterval) {
+        this(queue, batchSize, pollInterval, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "publisher-" + queue.getQueueName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * Claims and delivers items on the given scheduler, which is not shut down by the publisher.
+     */
+    public QueuePublisher(Queue<T> queue, int batchSize, long pollInterval, ScheduledExecutorService scheduler) {
+        this(queue, batchSize, pollInterval, scheduler, false);
+    }
+
+    private QueuePublisher(Queue<T> queue, int batchSize, long pollInterval, ScheduledExecutorService scheduler,
+                           boolean ownsScheduler) {
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.pollInterval = pollInterval;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super QueueItem<T>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null.");
+        }
+        QueueSubscription subscription = new QueueSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Stops claiming items for all subscriptions. A scheduler passed to the constructor is left running.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+
+    private class QueueSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super QueueItem<T>> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean emitting = new AtomicBoolean();
+        // an error signalled by the delivery loop, so that it never overlaps with onNext
+        private final AtomicReference<Throwable> pendingError = new AtomicReference<Throwable>();
+        private final AtomicBoolean terminated = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        QueueSubscription(Subscriber<? super QueueItem<T>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                pendingError.compareAndSet(null, new IllegalArgumentException("Requested " + n + " items, requests must be positive."));
+                cancelled = true;
+                schedule(0);
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            schedule(0);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void schedule(long delay) {
+            if (shutdown) {
+                return;
+            }
+            if (emitting.compareAndSet(false, true)) {
+                try {
+                    scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {
+                    emitting.set(false);
+                    logger.debug("Publisher of queue " + queue.getQueueName() + " has been shut down", e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Throwable error = pendingError.getAndSet(null);
+            if (error != null) {
+                signalError(error);
+                emitting.set(false);
+                return;
+            }
+            try {
+                while (!cancelled && !shutdown && demand.get() > 0) {
+                    List<QueueItem<T>> queueItems = queue.getAndLockNextItems((int) Math.min(batchSize, demand.get()));
+                    if (queueItems.isEmpty()) {
+                        emitting.set(false);
+                        schedule(pollInterval);
+                        return;
+                    }
+                    for (int i = 0; i < queueItems.size(); i++) {
+                        if (cancelled) {
+                            queue.releaseItems(queueItems.subList(i, queueItems.size()));
+                            break;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(queueItems.get(i));
+                    }
+                }
+            } catch (RuntimeException e) {
+                cancelled = true;
+                signalError(e);
+                emitting.set(false);
+                return;
+            }
+            emitting.set(false);
+            // demand or an error may have arrived after the loop stopped
+            if (pendingError.get() != null || !cancelled && demand.get() > 0) {
+                schedule(0);
+            }
+        }
+
+        private void signalError(Throwable error) {
+            if (terminated.compareAndSet(false, true)) {
+                subscriber.onError(error);
+            }
+        }
+    }
+
+}
@@ -2,7 +2,10 @@ package com.github.parze;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.ColumnMapRowMapper;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.SqlParameterValue;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
@@ -10,26 +13,79 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
 
 import javax.sql.DataSource;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RelationalDatabaseQueue<T> extends Queue<T> {
 
     private Logger logger = LoggerFactory.getLogger(RelationalDatabaseQueue.class);
 
+    private static final int MAX_IN_LIST_SIZE = 1000;
+
     private PlatformTransactionManager platformTransactionManager;
     private int maxJsonLength;
     private RelationalDatabaseType relationalDatabaseType;
     private JdbcTemplate jdbcTemplate;
+    private String sqlNotify;
+    private int shardCount;
+    private final AtomicInteger nextAddShard;
+    private final AtomicInteger nextClaimShard;
+    private final String sqlGroupHeadCondition;
+    private final GroupCommitter<Object[]> groupCommitter;
 
     protected RelationalDatabaseQueue(DataSource dataSource, PlatformTransactionManager platformTransactionManager, int maxJsonLength,  Class<T> clazzOfItem, String queueName) {
-        super(clazzOfItem, queueName);
+        this(dataSource, platformTransactionManager, maxJsonLength, clazzOfItem, queueName, false, new JsonCodec<T>(clazzOfItem), -1, 1, 0, 0);
+    }
+
+    protected RelationalDatabaseQueue(DataSource dataSource, PlatformTransactionManager platformTransactionManager, int maxJsonLength,  Class<T> clazzOfItem, String queueName,
+                                      boolean notifyOnAddItem, Codec<T> codec, int compressionThreshold, int shardCount,
+                                      int groupCommitBatchSize, long groupCommitDelay) {
+        super(clazzOfItem, queueName, codec, compressionThreshold);
         this.maxJsonLength = maxJsonLength;
+        this.shardCount = shardCount;
+        // nodes start at different shards so that they do not all compete for the head of the same one
+        int firstShard = new Random().nextInt(shardCount);
+        this.nextAddShard = new AtomicInteger(firstShard);
+        this.nextClaimShard = new AtomicInteger(firstShard);
         this.platformTransactionManager = platformTransactionManager;
         this.relationalDatabaseType = RelationalDatabaseTypeFactory.getDataBaseType(dataSource);
         this.jdbcTemplate = new JdbcTemplate(dataSource);
-        createTableIfNotExists();
+        this.sqlGroupHeadCondition = relationalDatabaseType.getSqlGroupHeadCondition(getQueueTableName());
+        if (notifyOnAddItem) {
+            this.sqlNotify = relationalDatabaseType.getSqlNotify(getNotifyChannelName());
+            if (this.sqlNotify == null) {
+                throw new TdbqException("Notify on add item is not supported by the database of the given data source.");
+            }
+        }
+        new RelationalDatabaseSchemaManager(jdbcTemplate, relationalDatabaseType).createOrMigrateQueueTable(getQueueTableName(),
+                this.maxJsonLength);
+        if (groupCommitBatchSize > 1) {
+            this.groupCommitter = new GroupCommitter<Object[]>(getQueueTableName(), groupCommitBatchSize, groupCommitDelay,
+                    new GroupCommitter.Writer<Object[]>() {
+                        public void write(List<Object[]> batchArgs) {
+                            insertItems(batchArgs);
+                        }
+                    });
+        } else {
+            this.groupCommitter = null;
+        }
     }
 
     private TransactionStatus createTransactionStatus() {
@@ -37,20 +93,158 @@ public class RelationalDatabaseQueue<T> extends Queue<T> {
         return this.platformTransactionManager.getTransaction(transactionDefinition);
     }
 
-    private void createTableIfNotExists() {
-        TransactionStatus status = createTransactionStatus();
-        jdbcTemplate.execute(relationalDatabaseType.getCreateQueueTableSql(getQueueTableName(), this.maxJsonLength));
-        platformTransactionManager.commit(status);
-    }
-
     public String getQueueTableName() {
         return getQueueName();
     }
 
+    public String getNotifyChannelName() {
+        return getQueueTableName();
+    }
+
+    private void notifyItemsAdded() {
+        if (sqlNotify != null) {
+            jdbcTemplate.execute(sqlNotify);
+        }
+    }
+
+    private String getSqlInsertItem() {
+        return "Insert Into " + getQueueTableName() + "(item, payload, started_at, prio, shard, group_key, visible_at) Values (?,?,?,?,?,?,?)";
+    }
+
+    private Object[] createInsertItemArgs(T item, AddItemOptions options) {
+        return createInsertItemArgs(relationalDatabaseType, toStoredForm(item), options, getShard(options));
+    }
+
+    static Object[] createInsertItemArgs(RelationalDatabaseType relationalDatabaseType, Object storedItem,
+                                         AddItemOptions options, int shard) {
+        String groupKey = options.getGroupKey();
+        if (groupKey != null && groupKey.length() > RelationalDatabaseType.MAX_GROUP_KEY_LENGTH) {
+            throw new TdbqException("Group key is longer than " + RelationalDatabaseType.MAX_GROUP_KEY_LENGTH + " characters.");
+        }
+        Object groupKeyArg = new SqlParameterValue(Types.VARCHAR, groupKey);
+        Instant notBefore = options.getNotBefore();
+        Object visibleAtArg = new SqlParameterValue(Types.TIMESTAMP, notBefore == null ? null : new Timestamp(notBefore.toEpochMilli()));
+        if (storedItem instanceof String) {
+            return new Object[] {storedItem, new SqlParameterValue(relationalDatabaseType.getPayloadSqlType(), null), null,
+                    options.getPriority(), shard, groupKeyArg, visibleAtArg};
+        }
+        return new Object[] {new SqlParameterValue(Types.VARCHAR, null), storedItem, null, options.getPriority(), shard, groupKeyArg,
+                visibleAtArg};
+    }
+
+    private int getShard(AddItemOptions options) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        if (options.getShardKey() != null) {
+            return floorMod(options.getShardKey().hashCode(), shardCount);
+        }
+        // keeps the items of a group in one shard
+        if (options.getGroupKey() != null) {
+            return floorMod(options.getGroupKey().hashCode(), shardCount);
+        }
+        return floorMod(nextAddShard.getAndIncrement(), shardCount);
+    }
+
+    private int floorMod(int value, int modulus) {
+        int mod = value % modulus;
+        return mod < 0 ? mod + modulus : mod;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    private Object getStoredItem(Map<String, Object> result) {
+        Object payload = result.get("payload");
+        return payload != null ? payload : result.get("item");
+    }
+
+    private void readPayloads(List<Map<String, Object>> results) {
+        // some drivers return locators for blobs that are only valid within the transaction
+        for (Map<String, Object> result : results) {
+            Object payload = result.get("payload");
+            if (payload instanceof Blob) {
+                try {
+                    Blob blob = (Blob) payload;
+                    result.put("payload", blob.getBytes(1, (int) blob.length()));
+                } catch (SQLException e) {
+                    throw new TdbqException("Failed to read payload of item " + result.get("id") + ".", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addItem(T item, AddItemOptions options) {
+        if (groupCommitter == null) {
+            TransactionStatus status = createTransactionStatus();
+            jdbcTemplate.update(getSqlInsertItem(), createInsertItemArgs(item, options));
+            notifyItemsAdded();
+            platformTransactionManager.commit(status);
+            return;
+        }
+        try {
+            addItemAsync(item, options).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * With group commit the item is committed together with items added by other threads and the executor is not
+     * used, no thread is taken while the item waits for the commit.
+     */
+    @Override
+    public CompletableFuture<Void> addItemAsync(T item, AddItemOptions options, Executor executor) {
+        if (groupCommitter == null) {
+            return super.addItemAsync(item, options, executor);
+        }
+        Object[] args;
+        try {
+            args = createInsertItemArgs(item, options);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        return groupCommitter.submit(args);
+    }
+
+    /**
+     * Commits the items waiting for a group commit and stops group committing. Does nothing without group commit.
+     */
+    public void shutdown() {
+        if (groupCommitter != null) {
+            groupCommitter.shutdown();
+        }
+    }
+
     @Override
-    public void addItem(T item) {
+    public void addItems(Collection<T> items, AddItemOptions options) {
+        if (items.isEmpty()) {
+            return;
+        }
+        List<Object[]> batchArgs = new ArrayList<Object[]>();
+        for (T item : items) {
+            batchArgs.add(createInsertItemArgs(item, options));
+        }
+        insertItems(batchArgs);
+    }
+
+    private void insertItems(List<Object[]> batchArgs) {
         TransactionStatus status = createTransactionStatus();
-        jdbcTemplate.update("Insert Into " + getQueueTableName() + "(item, started_at) Values (?,?)", toJson(item), null);
+        try {
+            jdbcTemplate.batchUpdate(getSqlInsertItem(), batchArgs);
+            notifyItemsAdded();
+        } catch (RuntimeException e) {
+            // the group committer writes the items of a failed batch again, each in a new transaction
+            platformTransactionManager.rollback(status);
+            throw e;
+        }
         platformTransactionManager.commit(status);
     }
 
@@ -59,33 +253,168 @@ public class RelationalDatabaseQueue<T> extends Queue<T> {
         return (Long) jdbcTemplate.queryForMap("Select count(id) as c From "+getQueueTableName()).get("c");
     }
 
+    @Override
+    public Instant getNextVisibleAt() {
+        List<Timestamp> visibleAts = jdbcTemplate.queryForList(relationalDatabaseType.getSqlSelectNextVisibleAt(getQueueTableName()),
+                Timestamp.class, new Timestamp(System.currentTimeMillis()));
+        if (visibleAts.isEmpty() || visibleAts.get(0) == null) {
+            return null;
+        }
+        return Instant.ofEpochMilli(visibleAts.get(0).getTime());
+    }
+
     @Override
     public QueueItem<T> getAndLockNextItem() {
-        Long id = null;
-        String itemStr = null;
+        List<QueueItem<T>> queueItems = getAndLockNextItems(1);
+        if (queueItems.isEmpty()) {
+            return null;
+        }
+        return queueItems.get(0);
+    }
+
+    @Override
+    public List<QueueItem<T>> getAndLockNextItems(int maxItems) {
+        List<QueueItem<T>> queueItems = new ArrayList<QueueItem<T>>();
+        if (maxItems <= 0) {
+            return queueItems;
+        }
+        Date startedAt = new Date();
         TransactionStatus status = createTransactionStatus();
-        String sql = relationalDatabaseType.getSqlSelectForUpdate(getQueueTableName());
-        List<Map<String, Object>> results = jdbcTemplate.queryForList(sql);
-        if (results != null && results.size() > 0) {
-            id = (Long) results.get(0).get("id");
-            sql = "Update "+getQueueTableName()+" Set started_at=? Where id=?";
-            jdbcTemplate.update(sql, new Date(), id);
-            Map<String, Object> result = jdbcTemplate.queryForMap("Select item From "+getQueueTableName()+" Where id=?", id);
-            if (result != null && result.size() > 0) {
-                itemStr = (String) result.get("item");
+        List<Map<String, Object>> results;
+        String claimCondition = relationalDatabaseType.getSqlVisibleCondition() + " And " + sqlGroupHeadCondition;
+        // the claim time and the shard are bound rather than inlined so that every claim runs the same statement
+        Object[] claimArgs = new Object[] {new Timestamp(startedAt.getTime())};
+        if (shardCount == 1) {
+            results = claimItems(claimCondition, claimArgs, maxItems, startedAt);
+        } else {
+            // starts at the next shard in rotation and moves on to the other shards while items are missing
+            results = new ArrayList<Map<String, Object>>();
+            int firstShard = floorMod(nextClaimShard.getAndIncrement(), shardCount);
+            for (int i = 0; i < shardCount && results.size() < maxItems; i++) {
+                Object[] shardClaimArgs = RelationalDatabaseType.concat(new Object[] {(firstShard + i) % shardCount}, claimArgs);
+                results.addAll(claimItems("shard = ? And " + claimCondition, shardClaimArgs, maxItems - results.size(), startedAt));
             }
         }
+        readPayloads(results);
         platformTransactionManager.commit(status);
-        if (id == null || itemStr == null) {
-            return null;
+        // in claim order, highest priority first and then oldest first
+        Collections.sort(results, new Comparator<Map<String, Object>>() {
+            public int compare(Map<String, Object> result0, Map<String, Object> result1) {
+                int prio0 = result0.get("prio") == null ? AddItemOptions.DEFAULT_PRIORITY : ((Number) result0.get("prio")).intValue();
+                int prio1 = result1.get("prio") == null ? AddItemOptions.DEFAULT_PRIORITY : ((Number) result1.get("prio")).intValue();
+                if (prio0 != prio1) {
+                    return prio0 > prio1 ? -1 : 1;
+                }
+                return toLong(result0.get("id")).compareTo(toLong(result1.get("id")));
+            }
+        });
+        for (Map<String, Object> result : results) {
+            queueItems.add(new QueueItem<T>(toLong(result.get("id")), getStoredItem(result), this));
+        }
+        return queueItems;
+    }
+
+    private List<Map<String, Object>> claimItems(String claimCondition, Object[] claimArgs, int maxItems, Date startedAt) {
+        List<Map<String, Object>> results = relationalDatabaseType.claimItems(jdbcTemplate, getQueueTableName(), claimCondition,
+                claimArgs, maxItems, startedAt);
+        if (results == null) {
+            results = selectForUpdate(claimCondition, claimArgs, maxItems);
+            if (results.size() > 0) {
+                List<Object> args = new ArrayList<Object>();
+                args.add(startedAt);
+                for (Map<String, Object> result : results) {
+                    args.add(result.get("id"));
+                }
+                String sql = "Update "+getQueueTableName()+" Set started_at=? Where id In ("+createParameterList(results.size())+")";
+                jdbcTemplate.update(sql, args.toArray());
+            }
+        }
+        return results;
+    }
+
+    private List<Map<String, Object>> selectForUpdate(String claimCondition, final Object[] claimArgs, final int maxItems) {
+        final String sql = relationalDatabaseType.getSqlSelectForUpdate(getQueueTableName(), claimCondition, maxItems);
+        return jdbcTemplate.query(new PreparedStatementCreator() {
+            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                PreparedStatement preparedStatement = connection.prepareStatement(sql);
+                for (int i = 0; i < claimArgs.length; i++) {
+                    preparedStatement.setObject(i + 1, claimArgs[i]);
+                }
+                preparedStatement.setMaxRows(maxItems);
+                return preparedStatement;
+            }
+        }, new ColumnMapRowMapper());
+    }
+
+    private Long toLong(Object id) {
+        return ((Number) id).longValue();
+    }
+
+    private String createParameterList(int size) {
+        StringBuilder parameterList = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            parameterList.append(i == 0 ? "?" : ",?");
         }
-        return new QueueItem<T>(id, fromJson(itemStr));
+        return parameterList.toString();
     }
 
     @Override
     public void removeItem(QueueItem<T> queueItem) {
         TransactionStatus status = createTransactionStatus();
-        jdbcTemplate.update("Delete From " + getQueueTableName() + " Where id=?", queueItem.getId());
+        try {
+            jdbcTemplate.update("Delete From " + getQueueTableName() + " Where id=?", queueItem.getId());
+        } catch (RuntimeException e) {
+            // leaves no failed transaction bound to the thread for the caller's retry
+            platformTransactionManager.rollback(status);
+            throw e;
+        }
+        platformTransactionManager.commit(status);
+    }
+
+    @Override
+    public void removeItems(Collection<QueueItem<T>> queueItems) {
+        if (queueItems.isEmpty()) {
+            return;
+        }
+        List<Object> ids = new ArrayList<Object>();
+        for (QueueItem<T> queueItem : queueItems) {
+            ids.add(queueItem.getId());
+        }
+        TransactionStatus status = createTransactionStatus();
+        try {
+            for (int i = 0; i < ids.size(); i += MAX_IN_LIST_SIZE) {
+                List<Object> idsInChunk = ids.subList(i, Math.min(i + MAX_IN_LIST_SIZE, ids.size()));
+                jdbcTemplate.update("Delete From " + getQueueTableName() + " Where id In (" + createParameterList(idsInChunk.size()) + ")",
+                        idsInChunk.toArray());
+            }
+        } catch (RuntimeException e) {
+            platformTransactionManager.rollback(status);
+            throw e;
+        }
+        platformTransactionManager.commit(status);
+    }
+
+    @Override
+    public void releaseItems(Collection<QueueItem<T>> queueItems) {
+        if (queueItems.isEmpty()) {
+            return;
+        }
+        List<Object> ids = new ArrayList<Object>();
+        for (QueueItem<T> queueItem : queueItems) {
+            ids.add(queueItem.getId());
+        }
+        TransactionStatus status = createTransactionStatus();
+        try {
+            for (int i = 0; i < ids.size(); i += MAX_IN_LIST_SIZE) {
+                List<Object> idsInChunk = ids.subList(i, Math.min(i + MAX_IN_LIST_SIZE, ids.size()));
+                jdbcTemplate.update("Update " + getQueueTableName() + " Set started_at=NULL Where id In (" + createParameterList(idsInChunk.size()) + ")",
+                        idsInChunk.toArray());
+            }
+            notifyItemsAdded();
+        } catch (RuntimeException e) {
+            platformTransactionManager.rollback(status);
+            throw e;
+        }
         platformTransactionManager.commit(status);
     }
 
@@ -97,6 +426,12 @@ public class RelationalDatabaseQueue<T> extends Queue<T> {
         private Integer maxJsonLength;
         private Class<T> clazzOfItem;
         private String queueName;
+        private boolean notifyOnAddItem;
+        private Codec<T> codec;
+        private Integer compressionThreshold;
+        private Integer shardCount;
+        private Integer groupCommitBatchSize;
+        private Long groupCommitDelay;
 
         public Builder withDataSource(DataSource dataSource) {
             this.dataSource = dataSource;
@@ -123,6 +458,44 @@ public class RelationalDatabaseQueue<T> extends Queue<T> {
             return this;
         }
 
+        public Builder<T> withNotifyOnAddItem(boolean notifyOnAddItem) {
+            this.notifyOnAddItem = notifyOnAddItem;
+            return this;
+        }
+
+        public Builder<T> withCodec(Codec<T> codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * Items encoding to more than compressionThreshold bytes are stored deflated.
+         */
+        public Builder<T> withCompressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * Spreads items over shardCount shards, by shard key when one is given and round robin otherwise, and claims
+         * from one shard at a time. Priorities are only honoured within a shard. The shard count of a queue should
+         * not be lowered while items remain in the shards above the new count.
+         */
+        public Builder<T> withShardCount(int shardCount) {
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        /**
+         * Collects items added by concurrent threads for up to maxDelay microseconds or maxBatchSize items and inserts
+         * them in one transaction. Adding an item still returns only after it has been committed.
+         */
+        public Builder<T> withGroupCommit(int maxBatchSize, long maxDelay) {
+            this.groupCommitBatchSize = maxBatchSize;
+            this.groupCommitDelay = maxDelay;
+            return this;
+        }
+
         public Queue<T> build() {
             if (dataSource == null || clazzOfItem == null) {
                 throw new TdbqException("Data source and class of item must be set.");
@@ -136,7 +509,26 @@ public class RelationalDatabaseQueue<T> extends Queue<T> {
             if (platformTransactionManager == null) {
                 platformTransactionManager = new DataSourceTransactionManager(dataSource);
             }
-            return new RelationalDatabaseQueue<T>(dataSource, platformTransactionManager, maxJsonLength, clazzOfItem, queueName);
+            if (codec == null) {
+                codec = new JsonCodec<T>(clazzOfItem);
+            }
+            if (compressionThreshold == null) {
+                compressionThreshold = -1;
+            }
+            if (shardCount == null) {
+                shardCount = 1;
+            }
+            if (shardCount <= 0) {
+                throw new TdbqException("Shard count must be greater than zero.");
+            }
+            if (groupCommitBatchSize == null) {
+                groupCommitBatchSize = 0;
+                groupCommitDelay = 0L;
+            } else if (groupCommitBatchSize <= 1 || groupCommitDelay <= 0) {
+                throw new TdbqException("Group commit batch size must be greater than one and its delay greater than zero.");
+            }
+            return new RelationalDatabaseQueue<T>(dataSource, platformTransactionManager, maxJsonLength, clazzOfItem, queueName,
+                    notifyOnAddItem, codec, compressionThreshold, shardCount, groupCommitBatchSize, groupCommitDelay);
         }
 
     }
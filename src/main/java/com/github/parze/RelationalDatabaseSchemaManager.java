@@ -0,0 +1,173 @@
+package com.github.parze;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Creates queue tables and brings existing ones up to RelationalDatabaseType.SCHEMA_VERSION, keeping the version of
+ * every queue table in the schema version table. Schema changes that are already in place are skipped, so a step that
+ * failed part way or raced with another node migrating the same table is completed by repeating it.
+ */
+public class RelationalDatabaseSchemaManager {
+
+    private Logger logger = LoggerFactory.getLogger(RelationalDatabaseSchemaManager.class);
+
+    public static final String SCHEMA_VERSION_TABLE_NAME = "tdbq_schema_version";
+
+    private static final int MAX_MIGRATION_ATTEMPTS = 5;
+    private static final long MIGRATION_RETRY_DELAY = 200;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RelationalDatabaseType relationalDatabaseType;
+
+    public RelationalDatabaseSchemaManager(JdbcTemplate jdbcTemplate, RelationalDatabaseType relationalDatabaseType) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.relationalDatabaseType = relationalDatabaseType;
+    }
+
+    public void createOrMigrateQueueTable(String queueTableName, int maxJsonLength) {
+        try {
+            jdbcTemplate.execute(relationalDatabaseType.getCreateSchemaVersionTableSql(SCHEMA_VERSION_TABLE_NAME));
+        } catch (RuntimeException e) {
+            // another node may have created it at the same time
+            if (!tableExists(SCHEMA_VERSION_TABLE_NAME)) {
+                throw e;
+            }
+        }
+        int version = getSchemaVersion(queueTableName);
+        if (version > RelationalDatabaseType.SCHEMA_VERSION) {
+            logger.warn("Queue table " + queueTableName + " has schema version " + version + " which is newer than " +
+                    RelationalDatabaseType.SCHEMA_VERSION + ".");
+        }
+        while (version < RelationalDatabaseType.SCHEMA_VERSION) {
+            migrateQueueTable(queueTableName, maxJsonLength, version, version + 1);
+            version = getSchemaVersion(queueTableName);
+        }
+    }
+
+    private void migrateQueueTable(String queueTableName, int maxJsonLength, int version, int nextVersion) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                for (RelationalDatabaseType.SchemaChange change : relationalDatabaseType.getSqlMigrateQueueTable(queueTableName,
+                        maxJsonLength, nextVersion)) {
+                    if (!isApplied(queueTableName, change)) {
+                        jdbcTemplate.execute(change.getSql());
+                    }
+                }
+                setSchemaVersion(queueTableName, version, nextVersion);
+                logger.info("Migrated queue table " + queueTableName + " to schema version " + nextVersion);
+                return;
+            } catch (RuntimeException e) {
+                // another node may be migrating the same table, the changes it made are skipped on the next attempt
+                if (getSchemaVersion(queueTableName) >= nextVersion) {
+                    return;
+                }
+                if (attempt == MAX_MIGRATION_ATTEMPTS) {
+                    throw new TdbqException("Failed to migrate queue table " + queueTableName + " to schema version " + nextVersion + ".", e);
+                }
+                logger.warn("Failed to migrate queue table " + queueTableName + " to schema version " + nextVersion +
+                        ", attempt " + attempt + " of " + MAX_MIGRATION_ATTEMPTS, e);
+                try {
+                    Thread.sleep(MIGRATION_RETRY_DELAY * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new TdbqException("Interrupted while migrating queue table " + queueTableName + ".", e);
+                }
+            }
+        }
+    }
+
+    private boolean isApplied(String queueTableName, RelationalDatabaseType.SchemaChange change) {
+        switch (change.getKind()) {
+            case CREATE_TABLE:
+                return tableExists(queueTableName);
+            case ADD_COLUMN:
+                return columnExists(queueTableName, change.getName());
+            case MAKE_NULLABLE:
+                return isColumnNullable(queueTableName, change.getName());
+            case CREATE_INDEX:
+                return indexExists(queueTableName, change.getName());
+            case DROP_INDEX:
+                return !indexExists(queueTableName, change.getName());
+            default:
+                return false;
+        }
+    }
+
+    private boolean tableExists(String tableName) {
+        try {
+            jdbcTemplate.queryForList("Select 1 From " + tableName + " Where 1=0");
+            return true;
+        } catch (DataAccessException e) {
+            return false;
+        }
+    }
+
+    private boolean columnExists(String tableName, String columnName) {
+        try {
+            jdbcTemplate.queryForList("Select " + columnName + " From " + tableName + " Where 1=0");
+            return true;
+        } catch (DataAccessException e) {
+            return false;
+        }
+    }
+
+    private boolean isColumnNullable(String tableName, String columnName) {
+        return jdbcTemplate.query("Select " + columnName + " From " + tableName + " Where 1=0", new ResultSetExtractor<Boolean>() {
+            public Boolean extractData(ResultSet resultSet) throws SQLException {
+                return resultSet.getMetaData().isNullable(1) == ResultSetMetaData.columnNullable;
+            }
+        });
+    }
+
+    private boolean indexExists(final String tableName, final String indexName) {
+        return jdbcTemplate.execute(new ConnectionCallback<Boolean>() {
+            public Boolean doInConnection(Connection connection) throws SQLException {
+                DatabaseMetaData metaData = connection.getMetaData();
+                // databases differ in the case they keep unquoted names in
+                for (String name : new LinkedHashSet<String>(Arrays.asList(tableName, tableName.toUpperCase(), tableName.toLowerCase()))) {
+                    ResultSet resultSet = metaData.getIndexInfo(connection.getCatalog(), null, name, false, true);
+                    try {
+                        while (resultSet.next()) {
+                            if (indexName.equalsIgnoreCase(resultSet.getString("INDEX_NAME"))) {
+                                return true;
+                            }
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    public int getSchemaVersion(String queueTableName) {
+        List<Integer> versions = jdbcTemplate.queryForList("Select version From " + SCHEMA_VERSION_TABLE_NAME + " Where table_name=?",
+                Integer.class, queueTableName);
+        return versions.isEmpty() ? 0 : versions.get(0);
+    }
+
+    private void setSchemaVersion(String queueTableName, int currentVersion, int newVersion) {
+        if (currentVersion == 0) {
+            jdbcTemplate.update("Insert Into " + SCHEMA_VERSION_TABLE_NAME + "(table_name, version) Values (?,?)", queueTableName, newVersion);
+        } else {
+            jdbcTemplate.update("Update " + SCHEMA_VERSION_TABLE_NAME + " Set version=? Where table_name=? And version=?",
+                    newVersion, queueTableName, currentVersion);
+        }
+    }
+
+}
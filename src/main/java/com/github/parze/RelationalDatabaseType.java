@@ -1,17 +1,200 @@
 package com.github.parze;
 
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.CallableStatementCallback;
+import org.springframework.jdbc.core.CallableStatementCreator;
+import org.springframework.jdbc.core.ColumnMapRowMapper;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapperResultSetExtractor;
 
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 public abstract class RelationalDatabaseType {
 
+    public static final int SCHEMA_VERSION = 7;
+
+    public static final int MAX_GROUP_KEY_LENGTH = 128;
+
     public abstract boolean dataSourceBelongToType(JdbcTemplate jdbcTemplate);
 
     public abstract String getCreateQueueTableSql(String queueTableName, int maxJsonLength);
 
-    public abstract String getSqlSelectForUpdate(String queueTableName);
+    public String getCreateSchemaVersionTableSql(String schemaVersionTableName) {
+        return "Create Table If Not Exists "+schemaVersionTableName+"("+
+                "table_name varchar(128) Not NULL Primary Key, "+
+                "version Integer Not NULL)";
+    }
+
+    public String getCreateClaimIndexSql(String queueTableName) {
+        return "Create Index "+queueTableName+"_claim_idx On "+queueTableName+" (started_at, id)";
+    }
+
+    public String getCreatePriorityClaimIndexSql(String queueTableName) {
+        return "Create Index "+queueTableName+"_prio_claim_idx On "+queueTableName+" (started_at, prio Desc, id)";
+    }
+
+    public String getCreateShardClaimIndexSql(String queueTableName) {
+        return "Create Index "+queueTableName+"_shard_claim_idx On "+queueTableName+" (shard, started_at, prio Desc, id)";
+    }
+
+    public String getCreateGroupIndexSql(String queueTableName) {
+        return "Create Index "+queueTableName+"_group_idx On "+queueTableName+" (group_key, id)";
+    }
+
+    public String getCreateVisibleIndexSql(String queueTableName) {
+        return "Create Index "+queueTableName+"_visible_idx On "+queueTableName+" (started_at, visible_at)";
+    }
+
+    public String getDropIndexSql(String queueTableName, String indexName) {
+        return "Drop Index "+indexName;
+    }
+
+    public String getSetPriorityDefaultSql(String queueTableName) {
+        return "Alter Table "+queueTableName+" Alter Column prio Set Default "+AddItemOptions.DEFAULT_PRIORITY;
+    }
+
+    public String getPayloadColumnType() {
+        return "Blob";
+    }
+
+    /**
+     * The JDBC type an empty payload is bound with, matching the payload column type.
+     */
+    public int getPayloadSqlType() {
+        return Types.BLOB;
+    }
+
+    public String getAddPayloadColumnSql(String queueTableName) {
+        return "Alter Table "+queueTableName+" Add Column payload "+getPayloadColumnType();
+    }
+
+    public String getMakeItemNullableSql(String queueTableName, int maxJsonLength) {
+        return "Alter Table "+queueTableName+" Alter Column item Set Null";
+    }
+
+    public String getAddShardColumnSql(String queueTableName) {
+        return "Alter Table "+queueTableName+" Add Column shard Integer Default 0 Not NULL";
+    }
+
+    public String getAddGroupKeyColumnSql(String queueTableName) {
+        return "Alter Table "+queueTableName+" Add Column group_key varchar("+MAX_GROUP_KEY_LENGTH+")";
+    }
+
+    public String getAddVisibleAtColumnSql(String queueTableName) {
+        return "Alter Table "+queueTableName+" Add Column visible_at Timestamp";
+    }
+
+    /**
+     * Returns the condition that only lets items be claimed whose not before time is at or before the claim time,
+     * which is bound to its parameter.
+     */
+    public String getSqlVisibleCondition() {
+        return "(visible_at is NULL Or visible_at <= ?)";
+    }
+
+    public String getSqlSelectNextVisibleAt(String queueTableName) {
+        return "Select Min(visible_at) From "+queueTableName+" Where started_at is NULL And visible_at > ?";
+    }
+
+    /**
+     * Returns the condition that only lets the oldest item of a group be claimed, so that an item of a group waits
+     * until all items added to the group before it have been removed.
+     */
+    public String getSqlGroupHeadCondition(String queueTableName) {
+        return "(group_key is NULL Or Not Exists (Select 1 From "+queueTableName+" g "+
+                "Where g.group_key = "+queueTableName+".group_key And g.id < "+queueTableName+".id))";
+    }
+
+    /**
+     * Returns the where clause of claimable rows, narrowed by claimCondition unless it is null. The parameters of
+     * the claim condition are bound to the claim args, ahead of any parameters that follow the where clause.
+     */
+    public String getSqlClaimWhere(String claimCondition) {
+        return "Where started_at is NULL"+(claimCondition == null ? "" : " And "+claimCondition);
+    }
+
+    public String getSqlClaimOrder() {
+        return "Order By prio Desc, id";
+    }
+
+    /**
+     * Returns the schema changes that take a queue table from schema version toVersion - 1 to toVersion.
+     */
+    public List<SchemaChange> getSqlMigrateQueueTable(String queueTableName, int maxJsonLength, int toVersion) {
+        List<SchemaChange> changes = new ArrayList<SchemaChange>();
+        switch (toVersion) {
+            case 1:
+                changes.add(SchemaChange.createTable(getCreateQueueTableSql(queueTableName, maxJsonLength)));
+                break;
+            case 2:
+                changes.add(SchemaChange.createIndex(getCreateClaimIndexSql(queueTableName), queueTableName+"_claim_idx"));
+                break;
+            case 3:
+                changes.add(SchemaChange.statement("Update "+queueTableName+" Set prio="+AddItemOptions.DEFAULT_PRIORITY+" "+
+                        "Where prio is NULL"));
+                changes.add(SchemaChange.statement(getSetPriorityDefaultSql(queueTableName)));
+                changes.add(SchemaChange.dropIndex(getDropIndexSql(queueTableName, queueTableName+"_claim_idx"),
+                        queueTableName+"_claim_idx"));
+                changes.add(SchemaChange.createIndex(getCreatePriorityClaimIndexSql(queueTableName), queueTableName+"_prio_claim_idx"));
+                break;
+            case 4:
+                // items of binary codecs are stored in the payload column and leave item empty
+                changes.add(SchemaChange.addColumn(getAddPayloadColumnSql(queueTableName), "payload"));
+                changes.add(SchemaChange.makeNullable(getMakeItemNullableSql(queueTableName, maxJsonLength), "item"));
+                break;
+            case 5:
+                // items of sharded queues are spread over shards that consumers claim from separately
+                changes.add(SchemaChange.addColumn(getAddShardColumnSql(queueTableName), "shard"));
+                changes.add(SchemaChange.createIndex(getCreateShardClaimIndexSql(queueTableName), queueTableName+"_shard_claim_idx"));
+                break;
+            case 6:
+                // items of a group are processed one at a time in the order they were added
+                changes.add(SchemaChange.addColumn(getAddGroupKeyColumnSql(queueTableName), "group_key"));
+                changes.add(SchemaChange.createIndex(getCreateGroupIndexSql(queueTableName), queueTableName+"_group_idx"));
+                break;
+            case 7:
+                // items added with a not before time are not claimed before it
+                changes.add(SchemaChange.addColumn(getAddVisibleAtColumnSql(queueTableName), "visible_at"));
+                changes.add(SchemaChange.createIndex(getCreateVisibleIndexSql(queueTableName), queueTableName+"_visible_idx"));
+                break;
+            default:
+                throw new TdbqException("Unknown schema version "+toVersion+".");
+        }
+        return changes;
+    }
+
+    /**
+     * Returns the select for update of claimable rows, its parameters are the claim args.
+     */
+    public abstract String getSqlSelectForUpdate(String queueTableName, String claimCondition, int maxItems);
+
+    public String getSqlForUpdate() {
+        return "For Update";
+    }
+
+    public String getSqlNotify(String channelName) {
+        return null;
+    }
+
+    /**
+     * Claims up to maxItems items matching claimCondition, whose parameters are bound to claimArgs, with one
+     * statement, setting started_at and returning the id and item columns of the claimed rows. Returns null when the
+     * dialect has no such statement, in which case the queue falls back to select for update followed by an update.
+     */
+    public List<Map<String, Object>> claimItems(JdbcTemplate jdbcTemplate, String queueTableName, String claimCondition,
+                                                Object[] claimArgs, int maxItems, Date startedAt) {
+        return null;
+    }
 
 
     public static class HSql extends RelationalDatabaseType {
@@ -34,16 +217,18 @@ public abstract class RelationalDatabaseType {
                     ")";
         }
         @Override
-        public String getSqlSelectForUpdate(String queueTableName) {
-            return "Select id From "+queueTableName+" "+
-                    "Where started_at is NULL "+
-                    "Order By id "+
-                    "Fetch First 1 Rows Only "+
-                    "For Update";
+        public String getSqlSelectForUpdate(String queueTableName, String claimCondition, int maxItems) {
+            return "Select id, item, payload, prio From "+queueTableName+" "+
+                    getSqlClaimWhere(claimCondition)+" "+
+                    getSqlClaimOrder()+" "+
+                    "Fetch First "+maxItems+" Rows Only "+
+                    getSqlForUpdate();
         }
     }
 
     public static class Oracle extends H2 {
+        // oracle.jdbc.OracleTypes.CURSOR, the driver is not a dependency
+        private static final int ORACLE_TYPE_CURSOR = -10;
         @Override
         public boolean dataSourceBelongToType(JdbcTemplate jdbcTemplate) {
             try {
@@ -53,18 +238,183 @@ public abstract class RelationalDatabaseType {
                 return false;
             }
         }
+        @Override
+        public String getCreateSchemaVersionTableSql(String schemaVersionTableName) {
+            return createTableIfNotExists("Create Table "+schemaVersionTableName+"("+
+                    "table_name varchar2(128) Not NULL Primary Key, "+
+                    "version Integer Not NULL)");
+        }
+        @Override
+        public String getCreateQueueTableSql(String queueTableName, int maxJsonLength) {
+            return createTableIfNotExists("Create Table "+queueTableName+"("+
+                    "id Number(19) Generated By Default As Identity Primary Key, "+
+                    "item varchar2("+maxJsonLength+") Not NULL, "+
+                    "started_at Timestamp, "+
+                    "prio Integer"+
+                    ")");
+        }
+        /**
+         * Oracle before 23c has no Create Table If Not Exists, the block ignores ORA-00955 raised for an existing table.
+         */
+        private String createTableIfNotExists(String createTableSql) {
+            return "Begin "+
+                    "Execute Immediate '"+createTableSql.replace("'", "''")+"'; "+
+                    "Exception When Others Then "+
+                    "If SQLCODE != -955 Then Raise; End If; "+
+                    "End;";
+        }
+        @Override
+        public String getSqlSelectForUpdate(String queueTableName, String claimCondition, int maxItems) {
+            // Oracle does not allow Fetch First together with For Update, the queue limits the rows fetched instead
+            return "Select id, item, payload, prio From "+queueTableName+" "+
+                    getSqlClaimWhere(claimCondition)+" "+
+                    getSqlClaimOrder()+" "+
+                    getSqlForUpdate();
+        }
+        @Override
+        public String getSqlForUpdate() {
+            return "For Update Skip Locked";
+        }
+        @Override
+        public String getSetPriorityDefaultSql(String queueTableName) {
+            return "Alter Table "+queueTableName+" Modify prio Default "+AddItemOptions.DEFAULT_PRIORITY;
+        }
+        @Override
+        public String getAddPayloadColumnSql(String queueTableName) {
+            return "Alter Table "+queueTableName+" Add (payload "+getPayloadColumnType()+")";
+        }
+        @Override
+        public String getMakeItemNullableSql(String queueTableName, int maxJsonLength) {
+            return "Alter Table "+queueTableName+" Modify (item Null)";
+        }
+        @Override
+        public String getAddShardColumnSql(String queueTableName) {
+            return "Alter Table "+queueTableName+" Add (shard Integer Default 0 Not Null)";
+        }
+        @Override
+        public String getAddGroupKeyColumnSql(String queueTableName) {
+            return "Alter Table "+queueTableName+" Add (group_key varchar2("+MAX_GROUP_KEY_LENGTH+"))";
+        }
+        @Override
+        public String getAddVisibleAtColumnSql(String queueTableName) {
+            return "Alter Table "+queueTableName+" Add (visible_at Timestamp)";
+        }
+        @Override
+        public List<Map<String, Object>> claimItems(JdbcTemplate jdbcTemplate, String queueTableName, String claimCondition,
+                                                    final Object[] claimArgs, int maxItems, final Date startedAt) {
+            // sys.odcinumberlist is a collection type every Oracle database has, so the claimed ids can be bulk
+            // collected and read back with a ref cursor without creating a type for the queue
+            final String sql = "Declare "+
+                    "Cursor c Is Select id From "+queueTableName+" "+
+                    getSqlClaimWhere(claimCondition)+" "+getSqlClaimOrder()+" "+getSqlForUpdate()+"; "+
+                    "v_ids sys.odcinumberlist; "+
+                    "Begin "+
+                    "Open c; "+
+                    "Fetch c Bulk Collect Into v_ids Limit "+maxItems+"; "+
+                    "Close c; "+
+                    "Forall i In 1 .. v_ids.Count "+
+                    "Update "+queueTableName+" Set started_at=? Where id = v_ids(i); "+
+                    "Open ? For Select id, item, payload, prio From "+queueTableName+" "+
+                    "Where id In (Select column_value From Table(v_ids)); "+
+                    "End;";
+            return jdbcTemplate.execute(new CallableStatementCreator() {
+                public CallableStatement createCallableStatement(Connection connection) throws SQLException {
+                    CallableStatement callableStatement = connection.prepareCall(sql);
+                    // the claim condition of the cursor comes first in the block
+                    for (int i = 0; i < claimArgs.length; i++) {
+                        callableStatement.setObject(i + 1, claimArgs[i]);
+                    }
+                    callableStatement.setTimestamp(claimArgs.length + 1, new Timestamp(startedAt.getTime()));
+                    callableStatement.registerOutParameter(claimArgs.length + 2, ORACLE_TYPE_CURSOR);
+                    return callableStatement;
+                }
+            }, new CallableStatementCallback<List<Map<String, Object>>>() {
+                public List<Map<String, Object>> doInCallableStatement(CallableStatement callableStatement)
+                        throws SQLException, DataAccessException {
+                    callableStatement.execute();
+                    ResultSet resultSet = (ResultSet) callableStatement.getObject(claimArgs.length + 2);
+                    try {
+                        return new RowMapperResultSetExtractor<Map<String, Object>>(new ColumnMapRowMapper()).extractData(resultSet);
+                    } finally {
+                        resultSet.close();
+                    }
+                }
+            });
+        }
     }
 
 
+    /**
+     * H2 before 2.2.220 cannot skip locked rows, and its data change delta tables do not take a For Update subquery,
+     * so claims keep the select for update followed by an update of the queue.
+     */
     public static class H2 extends HSql {
         @Override
         public boolean dataSourceBelongToType(JdbcTemplate jdbcTemplate) {
             try {
-                return jdbcTemplate.queryForList("Select * From INFORMATION_SCHEMA.SETTINGS Where name='MVCC'").size() > 0;
+                return jdbcTemplate.queryForObject("Select H2VERSION()", String.class) != null;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+    public static class H2SkipLocked extends H2 {
+        private static final int CANDIDATE_FACTOR = 4;
+        @Override
+        public boolean dataSourceBelongToType(JdbcTemplate jdbcTemplate) {
+            try {
+                return compareVersions(jdbcTemplate.queryForObject("Select H2VERSION()", String.class), 2, 2, 220) >= 0;
             } catch (Exception e) {
                 return false;
             }
         }
+        @Override
+        public List<Map<String, Object>> claimItems(JdbcTemplate jdbcTemplate, String queueTableName, String claimCondition,
+                                                    Object[] claimArgs, int maxItems, Date startedAt) {
+            // H2 applies Fetch First before skipping locked rows, so a page of candidates is read without locks and
+            // then the candidates still missing are locked with one statement, passing over rows that other
+            // consumers hold, and claimed with one update
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+            int lastCandidatePrio = Integer.MAX_VALUE;
+            long lastCandidateId = Long.MIN_VALUE;
+            while (results.size() < maxItems) {
+                List<Map<String, Object>> candidates = jdbcTemplate.queryForList("Select id, prio From "+queueTableName+" "+
+                        getSqlClaimWhere(claimCondition)+" And (prio < ? Or (prio = ? And id > ?)) "+
+                        getSqlClaimOrder()+" "+
+                        "Fetch First "+(maxItems * CANDIDATE_FACTOR)+" Rows Only",
+                        concat(claimArgs, lastCandidatePrio, lastCandidatePrio, lastCandidateId));
+                if (candidates.isEmpty()) {
+                    break;
+                }
+                for (int i = 0; i < candidates.size() && results.size() < maxItems; ) {
+                    List<Map<String, Object>> slice = candidates.subList(i, Math.min(candidates.size(), i + maxItems - results.size()));
+                    i += slice.size();
+                    List<Object> ids = new ArrayList<Object>();
+                    for (Map<String, Object> candidate : slice) {
+                        ids.add(candidate.get("id"));
+                    }
+                    String idList = createParameterList(ids.size());
+                    List<Map<String, Object>> locked = jdbcTemplate.queryForList("Select id, item, payload, prio From "+queueTableName+" "+
+                            "Where id In ("+idList+") And started_at is NULL "+
+                            "For Update Skip Locked", ids.toArray());
+                    if (locked.size() > 0) {
+                        List<Object> args = new ArrayList<Object>();
+                        args.add(new Timestamp(startedAt.getTime()));
+                        for (Map<String, Object> result : locked) {
+                            args.add(result.get("id"));
+                        }
+                        jdbcTemplate.update("Update "+queueTableName+" Set started_at=? Where id In ("+createParameterList(locked.size())+")",
+                                args.toArray());
+                        results.addAll(locked);
+                    }
+                    Map<String, Object> lastCandidate = slice.get(slice.size() - 1);
+                    lastCandidatePrio = ((Number) lastCandidate.get("prio")).intValue();
+                    lastCandidateId = ((Number) lastCandidate.get("id")).longValue();
+                }
+            }
+            return results;
+        }
     }
 
     public static class MySql extends RelationalDatabaseType {
@@ -86,16 +436,56 @@ public abstract class RelationalDatabaseType {
                     "PRIMARY KEY (id))";
         }
         @Override
-        public String getSqlSelectForUpdate(String queueTableName) {
-            return "Select id From "+queueTableName+" "+
-                    "Where started_at is NULL "+
-                    "Order By id " +
-                    "Limit 1 "+
-                    "For Update";
+        public String getDropIndexSql(String queueTableName, String indexName) {
+            return "Drop Index "+indexName+" On "+queueTableName;
+        }
+        @Override
+        public String getPayloadColumnType() {
+            return "Longblob";
+        }
+        @Override
+        public String getMakeItemNullableSql(String queueTableName, int maxJsonLength) {
+            return "Alter Table "+queueTableName+" Modify item varchar("+maxJsonLength+") NULL";
+        }
+        @Override
+        public String getAddVisibleAtColumnSql(String queueTableName) {
+            // without NULL MySQL makes the column not null and sets it to the current time on every update
+            return "Alter Table "+queueTableName+" Add Column visible_at Timestamp NULL";
+        }
+        @Override
+        public String getSqlSelectForUpdate(String queueTableName, String claimCondition, int maxItems) {
+            return "Select id, item, payload, prio From "+queueTableName+" "+
+                    getSqlClaimWhere(claimCondition)+" "+
+                    getSqlClaimOrder()+" "+
+                    "Limit "+maxItems+" "+
+                    getSqlForUpdate();
         }
     }
 
 
+    public static class MySqlSkipLocked extends MySql {
+        @Override
+        public boolean dataSourceBelongToType(JdbcTemplate jdbcTemplate) {
+            if (!super.dataSourceBelongToType(jdbcTemplate)) {
+                return false;
+            }
+            try {
+                // Skip Locked is supported from MySQL 8.0.1 and MariaDB 10.6
+                String version = jdbcTemplate.queryForObject("Select version()", String.class);
+                if (version.contains("MariaDB")) {
+                    return compareVersions(version, 10, 6, 0) >= 0;
+                }
+                return compareVersions(version, 8, 0, 1) >= 0;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        @Override
+        public String getSqlForUpdate() {
+            return "For Update Skip Locked";
+        }
+    }
+
     public static class PostgresSql extends MySql {
         @Override
         public boolean dataSourceBelongToType(JdbcTemplate jdbcTemplate) {
@@ -115,10 +505,176 @@ public abstract class RelationalDatabaseType {
                     "started_at Timestamp NULL, "+
                     "prio Integer)";
         }
+        @Override
+        public String getCreateClaimIndexSql(String queueTableName) {
+            return "Create Index "+queueTableName+"_claim_idx On "+queueTableName+" (id) Where started_at is NULL";
+        }
+        @Override
+        public String getCreatePriorityClaimIndexSql(String queueTableName) {
+            return "Create Index "+queueTableName+"_prio_claim_idx On "+queueTableName+" (prio Desc, id) Where started_at is NULL";
+        }
+        @Override
+        public String getCreateShardClaimIndexSql(String queueTableName) {
+            return "Create Index "+queueTableName+"_shard_claim_idx On "+queueTableName+" (shard, prio Desc, id) Where started_at is NULL";
+        }
+        @Override
+        public String getCreateVisibleIndexSql(String queueTableName) {
+            return "Create Index "+queueTableName+"_visible_idx On "+queueTableName+" (visible_at) Where started_at is NULL";
+        }
+        @Override
+        public String getDropIndexSql(String queueTableName, String indexName) {
+            return "Drop Index "+indexName;
+        }
+        @Override
+        public String getPayloadColumnType() {
+            return "Bytea";
+        }
+        @Override
+        public int getPayloadSqlType() {
+            // the driver binds a null Blob as an oid, which does not cast to Bytea
+            return Types.BINARY;
+        }
+        @Override
+        public String getMakeItemNullableSql(String queueTableName, int maxJsonLength) {
+            return "Alter Table "+queueTableName+" Alter Column item Drop Not Null";
+        }
+        @Override
+        public String getSqlNotify(String channelName) {
+            return "Notify "+channelName;
+        }
+        @Override
+        public List<Map<String, Object>> claimItems(JdbcTemplate jdbcTemplate, String queueTableName, String claimCondition,
+                                                    Object[] claimArgs, int maxItems, Date startedAt) {
+            // the limited select is a common table expression so that it runs once, the planner may turn an In
+            // subquery into a join that runs it again and claims more than maxItems rows
+            String sql = "With claimed As ("+
+                    "Select id From "+queueTableName+" "+
+                    getSqlClaimWhere(claimCondition)+" "+
+                    getSqlClaimOrder()+" "+
+                    "Limit "+maxItems+" "+
+                    getSqlForUpdate()+
+                    ") "+
+                    "Update "+queueTableName+" Set started_at=? From claimed Where "+queueTableName+".id = claimed.id "+
+                    "Returning "+queueTableName+".id, "+queueTableName+".item, "+queueTableName+".payload, "+queueTableName+".prio";
+            return jdbcTemplate.queryForList(sql, concat(claimArgs, new Timestamp(startedAt.getTime())));
+        }
     }
 
 
+    public static class PostgresSqlSkipLocked extends PostgresSql {
+        @Override
+        public boolean dataSourceBelongToType(JdbcTemplate jdbcTemplate) {
+            if (!super.dataSourceBelongToType(jdbcTemplate)) {
+                return false;
+            }
+            try {
+                // Skip Locked is supported from PostgreSQL 9.5
+                return Integer.parseInt(jdbcTemplate.queryForObject("SHOW server_version_num", String.class)) >= 90500;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        @Override
+        public String getSqlForUpdate() {
+            return "For Update Skip Locked";
+        }
+    }
+
+
+    /**
+     * A statement of a migration step together with the table, column or index it changes, so that the schema
+     * manager can skip it when a step is repeated after it failed part way or ran on another node.
+     */
+    public static class SchemaChange {
+
+        public enum Kind { STATEMENT, CREATE_TABLE, ADD_COLUMN, MAKE_NULLABLE, CREATE_INDEX, DROP_INDEX }
+
+        private final Kind kind;
+        private final String sql;
+        private final String name;
+
+        private SchemaChange(Kind kind, String sql, String name) {
+            this.kind = kind;
+            this.sql = sql;
+            this.name = name;
+        }
+
+        /**
+         * A statement that can be repeated as it is.
+         */
+        public static SchemaChange statement(String sql) {
+            return new SchemaChange(Kind.STATEMENT, sql, null);
+        }
+
+        public static SchemaChange createTable(String sql) {
+            return new SchemaChange(Kind.CREATE_TABLE, sql, null);
+        }
+
+        public static SchemaChange addColumn(String sql, String columnName) {
+            return new SchemaChange(Kind.ADD_COLUMN, sql, columnName);
+        }
+
+        public static SchemaChange makeNullable(String sql, String columnName) {
+            return new SchemaChange(Kind.MAKE_NULLABLE, sql, columnName);
+        }
+
+        public static SchemaChange createIndex(String sql, String indexName) {
+            return new SchemaChange(Kind.CREATE_INDEX, sql, indexName);
+        }
+
+        public static SchemaChange dropIndex(String sql, String indexName) {
+            return new SchemaChange(Kind.DROP_INDEX, sql, indexName);
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * The column or index changed, null for statements and tables.
+         */
+        public String getName() {
+            return name;
+        }
+    }
 
 
+    protected static String createParameterList(int size) {
+        StringBuilder parameterList = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            parameterList.append(i == 0 ? "?" : ",?");
+        }
+        return parameterList.toString();
+    }
+
+    protected static Object[] concat(Object[] args, Object... moreArgs) {
+        Object[] allArgs = Arrays.copyOf(args, args.length + moreArgs.length);
+        System.arraycopy(moreArgs, 0, allArgs, args.length, moreArgs.length);
+        return allArgs;
+    }
+
+    protected static int compareVersions(String version, int major, int minor, int patch) {
+        int[] parsedVersion = parseVersion(version);
+        int[] otherVersion = new int[] {major, minor, patch};
+        for (int i = 0; i < 3; i++) {
+            if (parsedVersion[i] != otherVersion[i]) {
+                return parsedVersion[i] < otherVersion[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int[] parseVersion(String version) {
+        int[] parsedVersion = new int[3];
+        String[] parts = version.trim().split("[^0-9]+", 4);
+        for (int i = 0; i < 3 && i < parts.length; i++) {
+            parsedVersion[i] = parts[i].isEmpty() ? 0 : Integer.parseInt(parts[i]);
+        }
+        return parsedVersion;
+    }
 
 }
@@ -13,8 +13,11 @@ public class RelationalDatabaseTypeFactory {
     static {
         relationalDatabaseTypeList = new ArrayList<RelationalDatabaseType>();
         relationalDatabaseTypeList.add(new RelationalDatabaseType.HSql());
+        relationalDatabaseTypeList.add(new RelationalDatabaseType.H2SkipLocked());
         relationalDatabaseTypeList.add(new RelationalDatabaseType.H2());
+        relationalDatabaseTypeList.add(new RelationalDatabaseType.MySqlSkipLocked());
         relationalDatabaseTypeList.add(new RelationalDatabaseType.MySql());
+        relationalDatabaseTypeList.add(new RelationalDatabaseType.PostgresSqlSkipLocked());
         relationalDatabaseTypeList.add(new RelationalDatabaseType.PostgresSql());
         relationalDatabaseTypeList.add(new RelationalDatabaseType.Oracle());
     }
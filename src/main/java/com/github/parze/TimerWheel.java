@@ -0,0 +1,186 @@
+package com.github.parze;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hashed timer wheel that runs a task once one of the deadlines scheduled on it has been reached. Deadlines are
+ * rounded up to ticks of tickDuration milliseconds and kept in the bucket of their tick, so scheduling takes constant
+ * time and deadlines falling into the same tick run the task once. The ticker thread parks until the earliest
+ * scheduled deadline instead of ticking through the ticks before it.
+ */
+public class TimerWheel {
+
+    private Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final long tickDuration;
+    private final int mask;
+    private final List<Set<Long>> buckets;
+    private final Runnable task;
+    private final Thread ticker;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition deadlineWasScheduled = lock.newCondition();
+    private int scheduledTicks;
+    private long nextTick;
+    private long earliestTick = Long.MAX_VALUE;
+    private volatile boolean shouldBeActive = true;
+
+    /**
+     * The wheel size is rounded up to a power of two, deadlines further away than one turn of the wheel stay in
+     * their bucket for more turns.
+     */
+    public TimerWheel(String name, long tickDuration, int wheelSize, Runnable task) {
+        int powerOfTwo = 1;
+        while (powerOfTwo < wheelSize) {
+            powerOfTwo <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.mask = powerOfTwo - 1;
+        this.buckets = new ArrayList<Set<Long>>(powerOfTwo);
+        for (int i = 0; i < powerOfTwo; i++) {
+            buckets.add(new HashSet<Long>());
+        }
+        this.task = task;
+        this.nextTick = System.currentTimeMillis() / tickDuration;
+        this.ticker = new Thread("timer-wheel-" + name) {
+            @Override
+            public void run() {
+                while (shouldBeActive) {
+                    try {
+                        if (expireTicks()) {
+                            runTask();
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        };
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Runs the task at the first tick at or after deadline, given in milliseconds since the epoch. A deadline that
+     * has passed runs the task at the next tick.
+     */
+    public void schedule(long deadline) {
+        long tick = (deadline + tickDuration - 1) / tickDuration;
+        lock.lock();
+        try {
+            // the bucket of the next tick is the first one expired
+            tick = Math.max(tick, nextTick);
+            if (buckets.get((int) tick & mask).add(tick)) {
+                scheduledTicks++;
+                if (tick < earliestTick) {
+                    earliestTick = tick;
+                    // the ticker may be parked until a later deadline
+                    deadlineWasScheduled.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The earliest scheduled deadline rounded up to its tick, in milliseconds since the epoch, or Long.MAX_VALUE when
+     * no deadline is scheduled.
+     */
+    public long getEarliestDeadline() {
+        lock.lock();
+        try {
+            return earliestTick == Long.MAX_VALUE ? Long.MAX_VALUE : earliestTick * tickDuration;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getScheduledTicks() {
+        lock.lock();
+        try {
+            return scheduledTicks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the earliest scheduled deadline is reached and removes the ticks up to now from the buckets passed
+     * since the last call, returning whether there were any.
+     */
+    private boolean expireTicks() throws InterruptedException {
+        lock.lock();
+        try {
+            while (shouldBeActive) {
+                if (scheduledTicks == 0) {
+                    deadlineWasScheduled.await();
+                    continue;
+                }
+                long timeLeft = earliestTick * tickDuration - System.currentTimeMillis();
+                if (timeLeft <= 0) {
+                    break;
+                }
+                deadlineWasScheduled.await(timeLeft, TimeUnit.MILLISECONDS);
+            }
+            long currentTick = System.currentTimeMillis() / tickDuration;
+            boolean expired = false;
+            // one turn covers every bucket when the ticker parked for more than a turn
+            for (long tick = Math.max(nextTick, currentTick - mask); tick <= currentTick; tick++) {
+                Iterator<Long> ticks = buckets.get((int) tick & mask).iterator();
+                while (ticks.hasNext()) {
+                    if (ticks.next() <= currentTick) {
+                        ticks.remove();
+                        scheduledTicks--;
+                        expired = true;
+                    }
+                }
+            }
+            nextTick = Math.max(nextTick, currentTick + 1);
+            if (expired) {
+                earliestTick = findEarliestTick();
+            }
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long findEarliestTick() {
+        long earliest = Long.MAX_VALUE;
+        if (scheduledTicks > 0) {
+            for (Set<Long> bucket : buckets) {
+                for (Long tick : bucket) {
+                    earliest = Math.min(earliest, tick);
+                }
+            }
+        }
+        return earliest;
+    }
+
+    private void runTask() {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.error("Timer wheel task failed", e);
+        }
+    }
+
+    public void shutdown() {
+        this.shouldBeActive = false;
+        this.ticker.interrupt();
+        try {
+            this.ticker.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+}
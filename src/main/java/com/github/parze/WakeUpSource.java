@@ -0,0 +1,12 @@
+package com.github.parze;
+
+/**
+ * Signals a QueueExecutor that items may be ready for processing, for example because another node added them.
+ */
+public interface WakeUpSource {
+
+    void start(Runnable wakeUp);
+
+    void stop();
+
+}
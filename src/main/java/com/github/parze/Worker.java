@@ -4,6 +4,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class Worker {
 
@@ -15,7 +18,7 @@ public abstract class Worker {
 
     private Object notifiesWhenAllWorkIsDone = new Object();
 
-    private boolean shouldBeActive;
+    private volatile boolean shouldBeActive;
 
     private boolean workIsPendingForProcessing = false;
 
@@ -25,6 +28,14 @@ public abstract class Worker {
 
     private String name;
 
+    private ForkJoinPool forkJoinPool;
+
+    private Phaser runningWorkers;
+
+    private final AtomicBoolean workIsScheduled = new AtomicBoolean();
+
+    private final AtomicBoolean workIsPending = new AtomicBoolean();
+
     public Worker(String name) {
         this.name = name;
     }
@@ -41,6 +52,17 @@ public abstract class Worker {
         logger.info("Started Worker " + getName());
     }
 
+    /**
+     * Starts the worker without a thread of its own, computing work as a task on the given pool. Running tasks are
+     * registered with runningWorkers so that all workers of a pool can be waited for at once.
+     */
+    void startWorker(ForkJoinPool forkJoinPool, Phaser runningWorkers) {
+        this.forkJoinPool = forkJoinPool;
+        this.runningWorkers = runningWorkers;
+        this.shouldBeActive = true;
+        logger.info("Started Worker " + getName() + " on a fork join pool");
+    }
+
     public void stopWorker() {
         shouldBeActive = false;
     }
@@ -50,13 +72,27 @@ public abstract class Worker {
     }
 
     public void notifyWorkerThatWorkIsReadyForProcessing() {
+        if (forkJoinPool != null) {
+            // notifications arriving while work is scheduled or being computed are coalesced into one more run
+            workIsPending.set(true);
+            scheduleWork();
+            return;
+        }
         synchronized (notifiesWhenWorkerHasNewWork) {
             workIsPendingForProcessing = true;
             notifiesWhenWorkerHasNewWork.notify();
         }
     }
 
+    /**
+     * Waits until the worker has computed all work it was notified of. A worker started on a fork join pool waits
+     * for all workers of the pool.
+     */
     public void waitUntilAllWorkIsDone() {
+        if (runningWorkers != null) {
+            Workers.awaitRunningWorkers(runningWorkers);
+            return;
+        }
         if (!workIsPendingForProcessing && isWaiting) {
             return;
         }
@@ -69,6 +105,41 @@ public abstract class Worker {
 
     public abstract void computeWork();
 
+    private void scheduleWork() {
+        if (shouldBeActive && workIsScheduled.compareAndSet(false, true)) {
+            runningWorkers.register();
+            forkJoinPool.execute(new Runnable() {
+                public void run() {
+                    computePendingWork();
+                }
+            });
+        }
+    }
+
+    private void computePendingWork() {
+        try {
+            while (shouldBeActive && workIsPending.getAndSet(false)) {
+                try {
+                    computeWork();
+                } catch (Throwable e) {
+                    logger.error("Exception was thrown when worker "+getName()+" computing work.", e);
+                }
+                workLastFinished = new Date();
+            }
+        } finally {
+            workIsScheduled.set(false);
+            // a notification may have come in after the loop stopped and before the work was unscheduled, its run
+            // is registered before this one deregisters so that waiting workers do not see the phaser advance
+            try {
+                if (workIsPending.get()) {
+                    scheduleWork();
+                }
+            } finally {
+                runningWorkers.arriveAndDeregister();
+            }
+        }
+    }
+
 
     public class WorkerThread extends Thread {
         @Override
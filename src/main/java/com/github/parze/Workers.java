@@ -3,15 +3,36 @@ package com.github.parze;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
 
 public class Workers<E extends Worker> {
 
     private List<E> workers;
 
+    private ForkJoinPool forkJoinPool;
+
+    private Phaser runningWorkers;
+
     public Workers() {
         this.workers = new ArrayList<E>();
     }
 
+    /**
+     * Runs the work of all workers as tasks on the given pool instead of on a thread per worker.
+     */
+    public Workers(ForkJoinPool forkJoinPool) {
+        this();
+        this.forkJoinPool = forkJoinPool;
+        this.runningWorkers = new Phaser() {
+            @Override
+            protected boolean onAdvance(int phase, int registeredParties) {
+                // the phaser is reused every time all workers are done
+                return false;
+            }
+        };
+    }
+
     public List<E> getWorkers() {
         return this.workers;
     }
@@ -22,7 +43,11 @@ public class Workers<E extends Worker> {
 
     public void startWorkers() {
         for (Worker worker : this.workers) {
-            worker.startWorker();
+            if (forkJoinPool != null) {
+                worker.startWorker(forkJoinPool, runningWorkers);
+            } else {
+                worker.startWorker();
+            }
         }
     }
 
@@ -37,6 +62,10 @@ public class Workers<E extends Worker> {
     }
 
     public void waitUntilAllWorkersAreDone() {
+        if (runningWorkers != null) {
+            awaitRunningWorkers(runningWorkers);
+            return;
+        }
         for (Worker worker : this.workers) {
             worker.waitUntilAllWorkIsDone();
         }
@@ -48,4 +77,11 @@ public class Workers<E extends Worker> {
         }
     }
 
+    static void awaitRunningWorkers(Phaser runningWorkers) {
+        int phase = runningWorkers.getPhase();
+        if (runningWorkers.getRegisteredParties() > 0) {
+            runningWorkers.awaitAdvance(phase);
+        }
+    }
+
 }
@@ -1,19 +1,46 @@
 package com.github.parze;
 
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
 
 import javax.sql.DataSource;
 
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 
 public class H2QueueTest {
@@ -69,6 +96,487 @@ public class H2QueueTest {
 
     }
 
+    @Test
+    public void testQueueExecutorShutdownWhileTasksAddItems() throws InterruptedException {
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_shutdown_add")
+                .build();
+        final CountDownLatch taskStarted = new CountDownLatch(1);
+        final CountDownLatch shutdownStarted = new CountDownLatch(1);
+        final List<QueueExecutor<Long>> queueExecutors = new ArrayList<QueueExecutor<Long>>();
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                taskStarted.countDown();
+                                try {
+                                    shutdownStarted.await(10, TimeUnit.SECONDS);
+                                    Thread.sleep(200);
+                                } catch (InterruptedException e) {
+                                }
+                                // notifies the queue manager while it is being shut down
+                                queueExecutors.get(0).addItem(queueItem.getItem() + 1);
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                }).build();
+        queueExecutors.add(queueExecutor);
+        queueExecutor.addItem(1L);
+        assertThat(taskStarted.await(10, TimeUnit.SECONDS)).isTrue();
+        shutdownStarted.countDown();
+        long start = System.currentTimeMillis();
+        queueExecutor.shutdown();
+        // the shutdown waits for the task only, not for the termination timeout
+        assertThat(System.currentTimeMillis() - start).isLessThan(10000);
+        assertThat(queue.getQueueSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueueExecutorWithBufferedAcknowledgements() throws InterruptedException {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_buffered_ack")
+                .build();
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withBatchSize(10)
+                .withAckBatchSize(20)
+                .withAckFlushInterval(50)
+                .build();
+        for (int i = 0; i < 100; i++) {
+            queueExecutor.addItem((long) i);
+        }
+        for (int i = 0; i < 100 && numbers.size() < 100; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(100);
+        assertThat(queue.getQueueSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void testQueueExecutorWokenByWakeUpSource() throws InterruptedException {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Runnable> wakeUps = new ArrayList<Runnable>();
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_wake_up")
+                .build();
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withWakeUpSource(new WakeUpSource() {
+                    public void start(Runnable wakeUp) {
+                        wakeUps.add(wakeUp);
+                    }
+                    public void stop() {
+                    }
+                })
+                .build();
+        // items added by another node are only seen when the wake up source signals
+        Thread.sleep(100);
+        queue.addItem(1L);
+        queue.addItem(2L);
+        wakeUps.get(0).run();
+        for (int i = 0; i < 100 && numbers.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testQueueExecutorWithPrefetchLimit() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_prefetch")
+                .build();
+        for (int i = 0; i < 10; i++) {
+            queue.addItem((long) i);
+        }
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                try {
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                }
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withThreadPoolSize(1)
+                .withBatchSize(5)
+                .withPrefetchLimit(2)
+                .build();
+        // one item is being processed and two are waiting for the busy thread, the rest is left for other nodes
+        Thread.sleep(200);
+        assertThat(queue.getAndLockNextItems(10).size()).isEqualTo(7);
+        release.countDown();
+        for (int i = 0; i < 100 && numbers.size() < 3; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void testQueueExecutorWithVirtualThreads() throws InterruptedException {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_virtual_threads")
+                .build();
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withThreadPoolSize(50)
+                .withVirtualThreads(true)
+                .build();
+        for (int i = 0; i < 100; i++) {
+            queueExecutor.addItem((long) i);
+        }
+        for (int i = 0; i < 100 && numbers.size() < 100; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(100);
+        assertThat(queue.getQueueSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void testQueueExecutorWithVirtualThreadsFallback() throws Exception {
+        boolean virtualThreadsAvailable = true;
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            virtualThreadsAvailable = false;
+        }
+        Assume.assumeFalse("Virtual threads are available", virtualThreadsAvailable);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_virtual_threads_fallback")
+                .build();
+        for (int i = 0; i < 40; i++) {
+            queue.addItem((long) i);
+        }
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                threads.add(Thread.currentThread());
+                                try {
+                                    Thread.sleep(5);
+                                } catch (InterruptedException e) {
+                                }
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withThreadPoolSize(2)
+                .withBatchSize(20)
+                .withVirtualThreads(true)
+                .build();
+        for (int i = 0; i < 200 && numbers.size() < 40; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(40);
+        // claimed items wait for one of the pool threads instead of each getting a platform thread
+        assertThat(threads.size()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    public void testQueueExecutorWithAdaptiveConcurrencyLimit() throws InterruptedException {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Integer> limits = Collections.synchronizedList(new ArrayList<Integer>());
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_adaptive_concurrency")
+                .build();
+        AdaptiveConcurrencyLimit adaptiveConcurrencyLimit = new AdaptiveConcurrencyLimit(1, 20);
+        adaptiveConcurrencyLimit.addListener(new AdaptiveConcurrencyLimit.Listener() {
+            public void limitChanged(int oldLimit, int newLimit, long averageLatency, double throughput, int waitingItems) {
+                limits.add(newLimit);
+            }
+        });
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                try {
+                                    Thread.sleep(2);
+                                } catch (InterruptedException e) {
+                                }
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withBatchSize(20)
+                .withAdaptiveConcurrencyLimit(adaptiveConcurrencyLimit)
+                .build();
+        List<Long> items = new ArrayList<Long>();
+        for (long i = 0; i < 300; i++) {
+            items.add(i);
+        }
+        queueExecutor.addItems(items);
+        for (int i = 0; i < 500 && numbers.size() < 300; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(300);
+        // items were waiting for the limit while latency stayed the same
+        assertThat(adaptiveConcurrencyLimit.getLimit()).isGreaterThan(1);
+        assertThat(limits).isNotEmpty();
+    }
+
+    @Test
+    public void testQueueExecutorWithAdaptivePolling() throws InterruptedException {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_adaptive_polling")
+                .build();
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withAdaptivePolling(5, 80)
+                .build();
+        // backing off while the queue is empty
+        Thread.sleep(300);
+        long emptyPolls = queueExecutor.getEmptyPollCount();
+        assertThat(emptyPolls).isGreaterThan(2);
+        assertThat(emptyPolls).isLessThan(30);
+        // items added by another node are found by polling
+        queue.addItem(1L);
+        queue.addItem(2L);
+        for (int i = 0; i < 100 && numbers.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(2);
+        assertThat(queueExecutor.getPollCount()).isGreaterThan(queueExecutor.getEmptyPollCount());
+    }
+
+    @Test
+    public void testQueueExecutorWithNotBefore() throws InterruptedException {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_not_before")
+                .build();
+        long start = System.currentTimeMillis();
+        // added by another node before the executor started
+        queue.addItem(1L, Instant.ofEpochMilli(start + 400));
+        assertThat(queue.getAndLockNextItem()).isNull();
+        assertThat(queue.getNextVisibleAt()).isEqualTo(Instant.ofEpochMilli(start + 400));
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .build();
+        queueExecutor.addItem(2L, Instant.ofEpochMilli(start + 200));
+        queueExecutor.addItem(3L);
+        for (int i = 0; i < 100 && numbers.size() < 3; i++) {
+            Thread.sleep(10);
+            if (System.currentTimeMillis() < start + 200) {
+                assertThat(numbers).excludes(1L, 2L);
+            }
+        }
+        queueExecutor.shutdown();
+        // woken by the timer wheel rather than by polling the queue
+        assertThat(numbers).isEqualTo(Arrays.asList(3L, 2L, 1L));
+        assertThat(queueExecutor.getPollCount()).isLessThan(10);
+    }
+
+    @Test
+    public void testQueueExecutorWithNotBeforeOfAnotherNode() throws InterruptedException {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_test_not_before_other_node")
+                .build();
+        final Runnable[] wakeUps = new Runnable[1];
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withWakeUpSource(new WakeUpSource() {
+                    public void start(Runnable wakeUp) {
+                        wakeUps[0] = wakeUp;
+                    }
+                    public void stop() {
+                    }
+                })
+                .build();
+        long start = System.currentTimeMillis();
+        queueExecutor.addItem(1L, Instant.ofEpochMilli(start + 3600000));
+        Thread.sleep(100);
+        // another node adds an item that becomes visible long before the one scheduled and signals it
+        queue.addItem(2L, Instant.ofEpochMilli(start + 300));
+        wakeUps[0].run();
+        for (int i = 0; i < 100 && numbers.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers).isEqualTo(Arrays.asList(2L));
+    }
+
+    @Test
+    public void testSchemaMigration() throws Exception {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        RelationalDatabaseType relationalDatabaseType = RelationalDatabaseTypeFactory.getDataBaseType(dataSource);
+        // a table created before schema versions were kept
+        jdbcTemplate.execute(relationalDatabaseType.getCreateQueueTableSql("queue_test_migration", 128));
+        RelationalDatabaseSchemaManager schemaManager = new RelationalDatabaseSchemaManager(jdbcTemplate, relationalDatabaseType);
+        assertThat(schemaManager.getSchemaVersion("queue_test_migration")).isEqualTo(0);
+        //
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_migration")
+                .build();
+        assertThat(schemaManager.getSchemaVersion("queue_test_migration")).isEqualTo(RelationalDatabaseType.SCHEMA_VERSION);
+        queue.addItem(1L);
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo(1L);
+        // building the queue again finds the schema up to date
+        new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_migration")
+                .build();
+        assertThat(schemaManager.getSchemaVersion("queue_test_migration")).isEqualTo(RelationalDatabaseType.SCHEMA_VERSION);
+    }
+
+    @Test
+    public void testSchemaMigrationRepeatedAfterPartialStep() throws Exception {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        RelationalDatabaseType relationalDatabaseType = RelationalDatabaseTypeFactory.getDataBaseType(dataSource);
+        RelationalDatabaseSchemaManager schemaManager = new RelationalDatabaseSchemaManager(jdbcTemplate, relationalDatabaseType);
+        schemaManager.createOrMigrateQueueTable("queue_test_partial_migration", 128);
+        // a step to version 3 that stopped after dropping the old claim index, leaving later changes in place as
+        // another node would
+        jdbcTemplate.update("Update " + RelationalDatabaseSchemaManager.SCHEMA_VERSION_TABLE_NAME + " Set version=2 Where table_name=?",
+                "queue_test_partial_migration");
+        jdbcTemplate.execute(relationalDatabaseType.getDropIndexSql("queue_test_partial_migration", "queue_test_partial_migration_prio_claim_idx"));
+        schemaManager.createOrMigrateQueueTable("queue_test_partial_migration", 128);
+        assertThat(schemaManager.getSchemaVersion("queue_test_partial_migration")).isEqualTo(RelationalDatabaseType.SCHEMA_VERSION);
+        assertThat(jdbcTemplate.queryForObject("Select Count(*) From INFORMATION_SCHEMA.INDEXES Where Lower(index_name)=?",
+                Integer.class, "queue_test_partial_migration_prio_claim_idx")).isEqualTo(1);
+    }
+
+    @Test
+    public void testSchemaMigrationOnNodesStartingTogether() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        List<Future<Queue<Long>>> futures = new ArrayList<Future<Queue<Long>>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executorService.submit(new Callable<Queue<Long>>() {
+                public Queue<Long> call() throws Exception {
+                    start.await();
+                    return new RelationalDatabaseQueue.Builder<Long>()
+                            .withDataSource(dataSource)
+                            .withClassOfItem(Long.class)
+                            .withQueueName("queue_test_concurrent_migration")
+                            .build();
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Queue<Long>> future : futures) {
+            future.get(60, TimeUnit.SECONDS).addItem(1L);
+        }
+        executorService.shutdown();
+        RelationalDatabaseSchemaManager schemaManager = new RelationalDatabaseSchemaManager(new JdbcTemplate(dataSource),
+                RelationalDatabaseTypeFactory.getDataBaseType(dataSource));
+        assertThat(schemaManager.getSchemaVersion("queue_test_concurrent_migration")).isEqualTo(RelationalDatabaseType.SCHEMA_VERSION);
+    }
+
     @Test
     public void testQueuePojo() throws Exception {
         Queue<MyPojo> queue = new RelationalDatabaseQueue.Builder<MyPojo>()
@@ -84,6 +592,406 @@ public class H2QueueTest {
         assertThat(myPojo.getName()).isEqualTo("one");
     }
 
+    @Test
+    public void testQueuePojoWithBinaryCodec() throws Exception {
+        Queue<MyPojo> queue = new RelationalDatabaseQueue.Builder<MyPojo>()
+                .withDataSource(dataSource)
+                .withClassOfItem(MyPojo.class)
+                .withQueueName("queue_test_binary_codec")
+                .withCodec(new SmileCodec<MyPojo>(MyPojo.class))
+                .build();
+        queue.addItem(new MyPojo(1, "one"));
+        queue.addItems(Arrays.asList(new MyPojo(2, "two"), new MyPojo(3, "three")));
+        //
+        List<QueueItem<MyPojo>> queueItems = queue.getAndLockNextItems(3);
+        assertThat(queueItems.size()).isEqualTo(3);
+        assertThat(queueItems.get(0).getItem().getName()).isEqualTo("one");
+        assertThat(queueItems.get(2).getItem().getId()).isEqualTo(3);
+        assertThat(queueItems.get(2).getItem().getName()).isEqualTo("three");
+    }
+
+    @Test
+    public void testQueuePojoWithCompression() throws Exception {
+        Queue<MyPojo> queue = new RelationalDatabaseQueue.Builder<MyPojo>()
+                .withDataSource(dataSource)
+                .withClassOfItem(MyPojo.class)
+                .withQueueName("queue_test_compression")
+                .withCompressionThreshold(64)
+                .build();
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longName.append("a long and repetitive name ");
+        }
+        queue.addItem(new MyPojo(1, "short"));
+        queue.addItem(new MyPojo(2, longName.toString()));
+        assertThat(queue.getCompressionStatistics().getCompressedItemCount()).isEqualTo(1);
+        assertThat(queue.getCompressionStatistics().getCompressionRatio()).isLessThan(0.5);
+        //
+        List<QueueItem<MyPojo>> queueItems = queue.getAndLockNextItems(2);
+        assertThat(queueItems.size()).isEqualTo(2);
+        assertThat(queueItems.get(0).getItem().getName()).isEqualTo("short");
+        assertThat(queueItems.get(1).getItem().getName()).isEqualTo(longName.toString());
+        assertThat(queue.getCompressionStatistics().getDecompressedItemCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueueItemWithoutDecoding() throws Exception {
+        Queue<MyPojo> queue = new RelationalDatabaseQueue.Builder<MyPojo>()
+                .withDataSource(dataSource)
+                .withClassOfItem(MyPojo.class)
+                .withQueueName("queue_test_without_decoding")
+                .build();
+        queue.addItem(new MyPojo(1, "one"));
+        //
+        QueueItem<MyPojo> queueItem = queue.getAndLockNextItem();
+        assertThat(queueItem.getStoredItem()).isInstanceOf(String.class);
+        assertThat(new String(queueItem.getEncodedItem(), "UTF-8")).isEqualTo((String) queueItem.getStoredItem());
+        assertThat(queueItem.getItem().getName()).isEqualTo("one");
+    }
+
+    @Test
+    public void testShardedQueue() throws Exception {
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_sharded")
+                .withShardCount(4)
+                .build();
+        for (long i = 0; i < 8; i++) {
+            queue.addItem(i);
+        }
+        queue.addItem(10L, new AddItemOptions().withShardKey("customer-1"));
+        queue.addItem(11L, new AddItemOptions().withShardKey("customer-1"));
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        assertThat(jdbcTemplate.queryForObject("Select count(Distinct shard) From queue_test_sharded Where item In ('0','1','2','3')",
+                Integer.class)).isEqualTo(4);
+        assertThat(jdbcTemplate.queryForObject("Select count(Distinct shard) From queue_test_sharded Where item In ('10','11')",
+                Integer.class)).isEqualTo(1);
+        // a claim takes what it can from the next shard and falls back to the others
+        assertThat(queue.getAndLockNextItems(3).size()).isEqualTo(3);
+        assertThat(queue.getAndLockNextItems(10).size()).isEqualTo(7);
+        assertThat(queue.getAndLockNextItem()).isNull();
+    }
+
+    @Test
+    public void testQueueGroups() throws Exception {
+        Queue<String> queue = new RelationalDatabaseQueue.Builder<String>()
+                .withDataSource(dataSource)
+                .withClassOfItem(String.class)
+                .withQueueName("queue_test_groups")
+                .build();
+        queue.addItem("a1", "a");
+        queue.addItem("a2", "a");
+        queue.addItem("b1", "b");
+        queue.addItem("none");
+        // only the oldest item of every group can be claimed
+        List<QueueItem<String>> queueItems = queue.getAndLockNextItems(10);
+        assertThat(queueItems.size()).isEqualTo(3);
+        assertThat(queueItems.get(0).getItem()).isEqualTo("a1");
+        assertThat(queueItems.get(1).getItem()).isEqualTo("b1");
+        assertThat(queueItems.get(2).getItem()).isEqualTo("none");
+        assertThat(queue.getAndLockNextItem()).isNull();
+        // the next item of a group is claimed when the one before it is removed
+        queue.removeItem(queueItems.get(0));
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo("a2");
+    }
+
+    @Test
+    public void testQueueGroupCommit() throws Exception {
+        final RelationalDatabaseQueue<Long> queue = (RelationalDatabaseQueue<Long>) new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_group_commit")
+                .withGroupCommit(50, 2000)
+                .build();
+        ExecutorService executorService = Executors.newFixedThreadPool(20);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(executorService.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (long j = 0; j < 10; j++) {
+                        queue.addItem(j);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executorService.shutdown();
+        // every add returned after its item was committed
+        assertThat(queue.getQueueSize()).isEqualTo(200);
+        queue.addItemAsync(1L, new AddItemOptions()).get(10, TimeUnit.SECONDS);
+        assertThat(queue.getQueueSize()).isEqualTo(201);
+        queue.shutdown();
+    }
+
+    @Test
+    public void testQueueGroupCommitWithFailingItem() throws Exception {
+        RelationalDatabaseQueue<String> queue = (RelationalDatabaseQueue<String>) new RelationalDatabaseQueue.Builder<String>()
+                .withDataSource(dataSource)
+                .withClassOfItem(String.class)
+                .withQueueName("queue_test_group_commit_failure")
+                .withMaxJsonLength(16)
+                .withGroupCommit(10, 200000)
+                .build();
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 10; i++) {
+            // the encoded item does not fit into the item column and fails the batch
+            String item = i == 5 ? "an item too long for the column" : "item " + i;
+            futures.add(queue.addItemAsync(item, new AddItemOptions()));
+        }
+        for (int i = 0; i < 10; i++) {
+            try {
+                futures.get(i).get(10, TimeUnit.SECONDS);
+                assertThat(i).isNotEqualTo(5);
+            } catch (ExecutionException e) {
+                assertThat(i).isEqualTo(5);
+            }
+        }
+        assertThat(queue.getQueueSize()).isEqualTo(9);
+        queue.shutdown();
+    }
+
+    @Test
+    public void testQueueAsync() throws Exception {
+        final Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_async")
+                .build();
+        CompletableFuture<Void> added = queue.addItemAsync(1L).thenCompose(new Function<Void, CompletableFuture<Void>>() {
+            public CompletableFuture<Void> apply(Void ignored) {
+                return queue.addItemAsync(2L);
+            }
+        });
+        added.get(10, TimeUnit.SECONDS);
+        assertThat(queue.getQueueSizeAsync().get(10, TimeUnit.SECONDS)).isEqualTo(2L);
+        QueueItem<Long> queueItem = queue.getAndLockNextItemAsync().get(10, TimeUnit.SECONDS);
+        assertThat(queueItem.getItem()).isEqualTo(1L);
+        queue.removeItemAsync(queueItem).get(10, TimeUnit.SECONDS);
+        assertThat(queue.getAndLockNextItemsAsync(10).get(10, TimeUnit.SECONDS).size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueueAsyncWithExecutor() throws Exception {
+        final Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_async_executor")
+                .build();
+        ExecutorService executorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "caller-executor");
+            }
+        });
+        queue.addItemAsync(1L, new AddItemOptions(), executorService).get(10, TimeUnit.SECONDS);
+        final String[] threadNames = new String[1];
+        CompletableFuture<Long> size = queue.getQueueSizeAsync(executorService).thenApply(new Function<Long, Long>() {
+            public Long apply(Long size) {
+                threadNames[0] = Thread.currentThread().getName();
+                return size;
+            }
+        });
+        assertThat(size.get(10, TimeUnit.SECONDS)).isEqualTo(1L);
+        assertThat(threadNames[0]).isEqualTo("caller-executor");
+        // a saturated executor fails the future instead of blocking the caller
+        executorService.shutdown();
+        try {
+            queue.getAndLockNextItemAsync(executorService).get(10, TimeUnit.SECONDS);
+            fail("Expected the call to be rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+        }
+        assertThat(queue.getQueueSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueuePublisher() throws Exception {
+        final Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_publisher")
+                .build();
+        for (long i = 0; i < 10; i++) {
+            queue.addItem(i);
+        }
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        final Subscription[] subscriptions = new Subscription[1];
+        QueuePublisher<Long> publisher = new QueuePublisher<Long>(queue, 2, 50);
+        publisher.subscribe(new Subscriber<QueueItem<Long>>() {
+            public void onSubscribe(Subscription subscription) {
+                subscriptions[0] = subscription;
+                subscription.request(3);
+            }
+            public void onNext(QueueItem<Long> queueItem) {
+                numbers.add(queueItem.getItem());
+                queue.removeItem(queueItem);
+            }
+            public void onError(Throwable throwable) {
+            }
+            public void onComplete() {
+            }
+        });
+        // only the requested items are claimed
+        for (int i = 0; i < 100 && numbers.size() < 3; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertThat(numbers.size()).isEqualTo(3);
+        assertThat(queue.getQueueSize()).isEqualTo(7);
+        subscriptions[0].request(100);
+        for (int i = 0; i < 100 && numbers.size() < 10; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(numbers.size()).isEqualTo(10);
+        // items added later are found by polling while demand is left
+        queue.addItem(10L);
+        for (int i = 0; i < 100 && numbers.size() < 11; i++) {
+            Thread.sleep(10);
+        }
+        publisher.shutdown();
+        assertThat(numbers.size()).isEqualTo(11);
+    }
+
+    @Test
+    public void testQueuePublisherReleasesItemsClaimedAfterCancel() throws Exception {
+        final Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_publisher_cancel")
+                .build();
+        for (long i = 0; i < 10; i++) {
+            queue.addItem(i);
+        }
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        final Subscription[] subscriptions = new Subscription[1];
+        QueuePublisher<Long> publisher = new QueuePublisher<Long>(queue, 5, 50);
+        publisher.subscribe(new Subscriber<QueueItem<Long>>() {
+            public void onSubscribe(Subscription subscription) {
+                subscriptions[0] = subscription;
+                subscription.request(Long.MAX_VALUE);
+            }
+            public void onNext(QueueItem<Long> queueItem) {
+                numbers.add(queueItem.getItem());
+                queue.removeItem(queueItem);
+                subscriptions[0].cancel();
+            }
+            public void onError(Throwable throwable) {
+            }
+            public void onComplete() {
+            }
+        });
+        for (int i = 0; i < 100 && numbers.size() < 1; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        publisher.shutdown();
+        assertThat(numbers.size()).isEqualTo(1);
+        // the other items of the batch went back to the queue
+        assertThat(queue.getAndLockNextItems(100).size()).isEqualTo(9);
+    }
+
+    @Test
+    public void testQueuePublisherSignalsInvalidRequestsSerially() throws Exception {
+        final Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_publisher_invalid_request")
+                .build();
+        queue.addItem(1L);
+        final Subscription[] subscriptions = new Subscription[1];
+        final CountDownLatch inOnNext = new CountDownLatch(1);
+        final CountDownLatch leaveOnNext = new CountDownLatch(1);
+        final CountDownLatch inOnError = new CountDownLatch(1);
+        final AtomicInteger signalsInProgress = new AtomicInteger();
+        final AtomicInteger overlappingSignals = new AtomicInteger();
+        QueuePublisher<Long> publisher = new QueuePublisher<Long>(queue, 2, 50);
+        publisher.subscribe(new Subscriber<QueueItem<Long>>() {
+            public void onSubscribe(Subscription subscription) {
+                subscriptions[0] = subscription;
+                subscription.request(1);
+            }
+            public void onNext(QueueItem<Long> queueItem) {
+                if (signalsInProgress.incrementAndGet() > 1) {
+                    overlappingSignals.incrementAndGet();
+                }
+                inOnNext.countDown();
+                try {
+                    leaveOnNext.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+                signalsInProgress.decrementAndGet();
+            }
+            public void onError(Throwable throwable) {
+                if (signalsInProgress.incrementAndGet() > 1) {
+                    overlappingSignals.incrementAndGet();
+                }
+                inOnError.countDown();
+                signalsInProgress.decrementAndGet();
+            }
+            public void onComplete() {
+            }
+        });
+        assertThat(inOnNext.await(10, TimeUnit.SECONDS)).isTrue();
+        // the error waits for onNext to return
+        subscriptions[0].request(0);
+        assertThat(inOnError.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        leaveOnNext.countDown();
+        assertThat(inOnError.await(10, TimeUnit.SECONDS)).isTrue();
+        publisher.shutdown();
+        assertThat(overlappingSignals.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testQueuePublisherWithScheduler() throws Exception {
+        final Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_publisher_scheduler")
+                .build();
+        for (long i = 0; i < 20; i++) {
+            queue.addItem(i);
+        }
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        QueuePublisher<Long> publisher = new QueuePublisher<Long>(queue, 2, 50, scheduler);
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        final Set<String> threadNames = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch bothSubscribersBusy = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            publisher.subscribe(new Subscriber<QueueItem<Long>>() {
+                public void onSubscribe(Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+                public void onNext(QueueItem<Long> queueItem) {
+                    threadNames.add(Thread.currentThread().getName());
+                    bothSubscribersBusy.countDown();
+                    try {
+                        // a subscriber that is slow does not hold up the other one
+                        bothSubscribersBusy.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                    }
+                    numbers.add(queueItem.getItem());
+                    queue.removeItem(queueItem);
+                }
+                public void onError(Throwable throwable) {
+                }
+                public void onComplete() {
+                }
+            });
+        }
+        for (int i = 0; i < 300 && numbers.size() < 20; i++) {
+            Thread.sleep(10);
+        }
+        publisher.shutdown();
+        assertThat(numbers.size()).isEqualTo(20);
+        assertThat(threadNames.size()).isEqualTo(2);
+        // the scheduler belongs to the caller and keeps running
+        assertThat(scheduler.isShutdown()).isFalse();
+        scheduler.shutdown();
+    }
+
     @Test
     public void testQueueLong() throws Exception {
         Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
@@ -116,6 +1024,108 @@ public class H2QueueTest {
 
     }
 
+    @Test
+    public void testQueueBatch() throws Exception {
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_batch")
+                .build();
+        for (long i = 0; i < 5; i++) {
+            queue.addItem(i);
+        }
+        //
+        List<QueueItem<Long>> queueItems = queue.getAndLockNextItems(3);
+        assertThat(queueItems.size()).isEqualTo(3);
+        assertThat(queueItems.get(0).getItem()).isEqualTo(0L);
+        assertThat(queueItems.get(2).getItem()).isEqualTo(2L);
+        //
+        queueItems = queue.getAndLockNextItems(3);
+        assertThat(queueItems.size()).isEqualTo(2);
+        assertThat(queueItems.get(0).getItem()).isEqualTo(3L);
+        assertThat(queue.getAndLockNextItems(3)).isEmpty();
+        assertThat(queue.getQueueSize()).isEqualTo(5);
+    }
+
+    @Test
+    public void testQueueAddItems() throws Exception {
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_add_items")
+                .build();
+        queue.addItems(Arrays.asList(0L, 1L, 2L, 3L, 4L));
+        queue.addItems(new ArrayList<Long>());
+        assertThat(queue.getQueueSize()).isEqualTo(5);
+        // claimed in the order of the collection
+        List<QueueItem<Long>> queueItems = queue.getAndLockNextItems(10);
+        assertThat(queueItems.size()).isEqualTo(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(queueItems.get(i).getItem()).isEqualTo((long) i);
+        }
+    }
+
+    @Test
+    public void testQueuePriority() throws Exception {
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_priority")
+                .build();
+        queue.addItem(1L);
+        queue.addItem(2L, 5);
+        queue.addItem(3L, -5);
+        queue.addItem(4L, 5);
+        //
+        List<QueueItem<Long>> queueItems = queue.getAndLockNextItems(2);
+        assertThat(queueItems.get(0).getItem()).isEqualTo(2L);
+        assertThat(queueItems.get(1).getItem()).isEqualTo(4L);
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo(1L);
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo(3L);
+    }
+
+    @Test
+    public void testConcurrentConsumersDoNotBlockOnHeadItem() throws Exception {
+        final PlatformTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        final Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withPlatformTransactionManager(transactionManager)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_skip_locked")
+                .build();
+        final int consumerCount = 5;
+        for (long i = 0; i < consumerCount; i++) {
+            queue.addItem(i);
+        }
+        final CountDownLatch allConsumersHoldAnItem = new CountDownLatch(consumerCount);
+        final List<Long> claimedItems = Collections.synchronizedList(new ArrayList<Long>());
+        ExecutorService executorService = Executors.newFixedThreadPool(consumerCount);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < consumerCount; i++) {
+            futures.add(executorService.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    // the outer transaction keeps the row locked until every consumer has claimed an item of its own
+                    TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+                    try {
+                        QueueItem<Long> queueItem = queue.getAndLockNextItem();
+                        if (queueItem != null) {
+                            claimedItems.add(queueItem.getItem());
+                        }
+                        allConsumersHoldAnItem.countDown();
+                        return allConsumersHoldAnItem.await(10, TimeUnit.SECONDS);
+                    } finally {
+                        transactionManager.rollback(status);
+                    }
+                }
+            }));
+        }
+        for (Future<Boolean> future : futures) {
+            assertThat(future.get()).isTrue();
+        }
+        executorService.shutdown();
+        assertThat(new HashSet<Long>(claimedItems).size()).isEqualTo(consumerCount);
+    }
+
     @Test
     public void testQueueMultiThreaded() throws Exception {
         Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
@@ -153,6 +1163,77 @@ public class H2QueueTest {
 
     }
 
+    @Test
+    public void testWorkersOnForkJoinPoolWaitForLateNotifications() throws Exception {
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger computed = new AtomicInteger();
+        final Workers<Worker> workers = new Workers<Worker>(new ForkJoinPool(2));
+        workers.addWorker(new Worker("Worker_late_notifications") {
+            public void computeWork() {
+                // runs of a worker do not overlap
+                computed.set(submitted.get());
+            }
+        });
+        workers.startWorkers();
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(executorService.submit(new Callable<Integer>() {
+                public Integer call() {
+                    int missed = 0;
+                    for (int j = 0; j < 50000; j++) {
+                        // notifications racing with the end of a run must be waited for as well
+                        int work = submitted.incrementAndGet();
+                        workers.notifyWorkersThatWorkIsReadyForProcessing();
+                        workers.waitUntilAllWorkersAreDone();
+                        if (computed.get() < work) {
+                            missed++;
+                        }
+                    }
+                    return missed;
+                }
+            }));
+        }
+        for (Future<Integer> future : futures) {
+            assertThat(future.get(60, TimeUnit.SECONDS)).isEqualTo(0);
+        }
+        executorService.shutdown();
+    }
+
+    @Test
+    public void testQueueMultiThreadedOnForkJoinPool() throws Exception {
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withDataSource(dataSource)
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_fork_join")
+                .build();
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        Workers<TestWorker> workers = new Workers<TestWorker>(forkJoinPool);
+        for (int i = 0; i < 200; i++) {
+            workers.addWorker(new TestWorker("Worker_" + i, queue));
+        }
+        workers.startWorkers();
+        //
+        int totalItemCount = 1000;
+        for (int i = 0; i < totalItemCount/2; i++) {
+            queue.addItem((long) i);
+        }
+        workers.notifyWorkersThatWorkIsReadyForProcessing();
+        for (int i = 0; i < totalItemCount/2; i++) {
+            queue.addItem((long) i);
+        }
+        workers.notifyWorkersThatWorkIsReadyForProcessing();
+        workers.waitUntilAllWorkersAreDone();
+        //
+        int totalWorkCount = 0;
+        for (TestWorker testWorker : workers.getWorkers()) {
+            totalWorkCount += testWorker.getWorkCount();
+            testWorker.stopWorker();
+        }
+        forkJoinPool.shutdown();
+        assertThat(totalWorkCount).isEqualTo(totalItemCount);
+    }
+
     public static class MyPojo {
         private int id;
         private String name;
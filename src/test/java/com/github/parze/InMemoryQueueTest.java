@@ -0,0 +1,190 @@
+package com.github.parze;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class InMemoryQueueTest {
+
+    @Test
+    public void testQueue() throws Exception {
+        InMemoryQueue<Long> queue = new InMemoryQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withCapacity(3)
+                .build();
+        assertThat(queue.getCapacity()).isEqualTo(4);
+        queue.addItem(1L);
+        queue.addItem(2L);
+        assertThat(queue.getQueueSize()).isEqualTo(2);
+        //
+        QueueItem<Long> queueItem = queue.getAndLockNextItem();
+        assertThat(queueItem.getItem()).isEqualTo(1L);
+        // claimed items count until they are removed
+        assertThat(queue.getQueueSize()).isEqualTo(2);
+        queue.removeItem(queueItem);
+        assertThat(queue.getQueueSize()).isEqualTo(1);
+        QueueItem<Long> lastQueueItem = queue.getAndLockNextItems(10).get(0);
+        assertThat(lastQueueItem.getItem()).isEqualTo(2L);
+        assertThat(queue.getAndLockNextItem()).isNull();
+        // a released item can be claimed again
+        queue.releaseItems(Collections.singletonList(lastQueueItem));
+        assertThat(queue.getQueueSize()).isEqualTo(1);
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo(2L);
+    }
+
+    @Test(expected = TdbqException.class)
+    public void testQueueFull() throws Exception {
+        InMemoryQueue<Long> queue = new InMemoryQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withCapacity(2)
+                .build();
+        queue.addItem(1L);
+        queue.addItem(2L);
+        queue.addItem(3L);
+    }
+
+    @Test
+    public void testQueueMultiThreaded() throws Exception {
+        final InMemoryQueue<Long> queue = new InMemoryQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withCapacity(64)
+                .build();
+        final Set<Long> items = Collections.synchronizedSet(new HashSet<Long>());
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 4; i++) {
+            final long producer = i;
+            futures.add(executorService.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (long j = 0; j < 10000; j++) {
+                        while (true) {
+                            try {
+                                queue.addItem(producer * 10000 + j);
+                                break;
+                            } catch (TdbqException e) {
+                                Thread.yield();
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+            futures.add(executorService.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    while (items.size() < 40000) {
+                        for (QueueItem<Long> queueItem : queue.getAndLockNextItems(10)) {
+                            assertThat(items.add(queueItem.getItem())).isTrue();
+                            queue.removeItem(queueItem);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executorService.shutdown();
+        assertThat(items.size()).isEqualTo(40000);
+        assertThat(queue.getQueueSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void testQueueExecutor() throws Exception {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        Queue<Long> queue = new InMemoryQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .build();
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                }).build();
+        for (int i = 0; i < 100; i++) {
+            queueExecutor.addItem((long) i);
+        }
+        for (int i = 0; i < 100 && numbers.size() < 100; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(100);
+        assertThat(queue.getQueueSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void testAcknowledgerRetriesFailedRemoval() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(2);
+        InMemoryQueue<Long> queue = new InMemoryQueue<Long>(Long.class, "queue_test_ack_retry", 16) {
+            @Override
+            public void removeItems(Collection<QueueItem<Long>> queueItems) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new TdbqException("Injected failure");
+                }
+                super.removeItems(queueItems);
+            }
+        };
+        queue.addItems(Arrays.asList(1L, 2L, 3L));
+        QueueItemAcknowledger<Long> acknowledger = new QueueItemAcknowledger<Long>(queue, 10, 10);
+        for (QueueItem<Long> queueItem : queue.getAndLockNextItems(3)) {
+            acknowledger.acknowledge(queueItem);
+        }
+        acknowledger.shutdown();
+        assertThat(queue.getQueueSize()).isEqualTo(0);
+        assertThat(acknowledger.getUnremovedItems()).isEmpty();
+    }
+
+    @Test
+    public void testAcknowledgerKeepsItemsThatCannotBeRemoved() throws Exception {
+        InMemoryQueue<Long> queue = new InMemoryQueue<Long>(Long.class, "queue_test_ack_failure", 16) {
+            @Override
+            public void removeItems(Collection<QueueItem<Long>> queueItems) {
+                throw new TdbqException("Injected failure");
+            }
+            @Override
+            public void removeItem(QueueItem<Long> queueItem) {
+                if (queueItem.getItem() == 2L) {
+                    throw new TdbqException("Injected failure");
+                }
+                super.removeItem(queueItem);
+            }
+        };
+        queue.addItems(Arrays.asList(1L, 2L, 3L));
+        QueueItemAcknowledger<Long> acknowledger = new QueueItemAcknowledger<Long>(queue, 10, 10);
+        for (QueueItem<Long> queueItem : queue.getAndLockNextItems(3)) {
+            acknowledger.acknowledge(queueItem);
+        }
+        try {
+            acknowledger.shutdown();
+            fail("Shutdown should report the item that could not be removed");
+        } catch (TdbqException e) {
+            assertThat(e.getCause()).hasMessage("Injected failure");
+        }
+        // the other items of the failed batch were removed one by one
+        assertThat(queue.getQueueSize()).isEqualTo(1);
+        assertThat(acknowledger.getUnremovedItems().size()).isEqualTo(1);
+        assertThat(acknowledger.getUnremovedItems().get(0).getItem()).isEqualTo(2L);
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.github.parze;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Ignore // ignore since it is a benchmark
+public class MappedFileQueueBenchmark {
+
+    private Logger logger = LoggerFactory.getLogger(MappedFileQueueBenchmark.class);
+
+    private static final int ITEMS = 20000;
+    private static final int BATCH_SIZE = 100;
+
+    @Test
+    public void benchmarkMappedFileQueueAgainstH2() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "queue_benchmark_mapped_" + System.nanoTime());
+        MappedFileQueue<Long> mappedFileQueue = new MappedFileQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDirectory(directory)
+                .withSegmentSize(4 * 1024 * 1024)
+                .build();
+        DataSource dataSource = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).build();
+        Queue<Long> h2Queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName("queue_benchmark_h2")
+                .build();
+        // a first round warms up the JIT
+        run(mappedFileQueue);
+        run(h2Queue);
+        long mappedFile = run(mappedFileQueue);
+        long h2 = run(h2Queue);
+        logger.info("Mapped file queue: " + mappedFile + " ms for " + ITEMS + " items, " + ITEMS * 1000L / Math.max(mappedFile, 1) + " items/s");
+        logger.info("H2 queue: " + h2 + " ms for " + ITEMS + " items, " + ITEMS * 1000L / Math.max(h2, 1) + " items/s");
+        mappedFileQueue.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Adds, claims and removes ITEMS items in batches and returns the time it took.
+     */
+    private long run(Queue<Long> queue) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < ITEMS; i += BATCH_SIZE) {
+            List<Long> items = new ArrayList<Long>();
+            for (long j = i; j < i + BATCH_SIZE; j++) {
+                items.add(j);
+            }
+            queue.addItems(items);
+        }
+        int claimed = 0;
+        while (claimed < ITEMS) {
+            List<QueueItem<Long>> queueItems = queue.getAndLockNextItems(BATCH_SIZE);
+            claimed += queueItems.size();
+            queue.removeItems(queueItems);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertThat(queue.getQueueSize()).isEqualTo(0);
+        return elapsed;
+    }
+
+}
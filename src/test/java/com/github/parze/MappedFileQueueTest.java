@@ -0,0 +1,152 @@
+package com.github.parze;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class MappedFileQueueTest {
+
+    private File directory;
+
+    @Before
+    public void setup() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "queue_test_mapped_" + System.nanoTime());
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private MappedFileQueue<Long> createQueue() {
+        return new MappedFileQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDirectory(directory)
+                .withSegmentSize(1024)
+                .build();
+    }
+
+    @Test
+    public void testQueue() throws Exception {
+        MappedFileQueue<Long> queue = createQueue();
+        assertThat(queue.getQueueSize()).isEqualTo(0);
+        queue.addItem(10L);
+        queue.addItem(20L);
+        assertThat(queue.getQueueSize()).isEqualTo(2);
+        //
+        QueueItem<Long> queueItem = queue.getAndLockNextItem();
+        assertThat(queueItem.getItem()).isEqualTo(10L);
+        queue.removeItem(queueItem);
+        assertThat(queue.getQueueSize()).isEqualTo(1);
+        QueueItem<Long> lastQueueItem = queue.getAndLockNextItem();
+        assertThat(lastQueueItem.getItem()).isEqualTo(20L);
+        assertThat(queue.getAndLockNextItem()).isNull();
+        // a released item is added again at the end and can be claimed again
+        queue.releaseItems(Collections.singletonList(lastQueueItem));
+        assertThat(queue.getQueueSize()).isEqualTo(1);
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo(20L);
+        assertThat(queue.getAndLockNextItem()).isNull();
+        queue.close();
+    }
+
+    @Test
+    public void testSegmentsAreDeletedAndRecovered() throws Exception {
+        MappedFileQueue<Long> queue = createQueue();
+        List<Long> items = new ArrayList<Long>();
+        for (long i = 0; i < 500; i++) {
+            items.add(i);
+        }
+        queue.addItems(items);
+        assertThat(directory.list().length).isGreaterThan(3);
+        // removing the first 300 items deletes the segments holding only them
+        List<QueueItem<Long>> queueItems = queue.getAndLockNextItems(300);
+        queue.removeItems(queueItems);
+        List<QueueItem<Long>> claimedItems = queue.getAndLockNextItems(10);
+        queue.removeItem(claimedItems.get(0));
+        assertThat(queue.getQueueSize()).isEqualTo(199);
+        int segmentFiles = directory.list().length;
+        // a queue opened on the same directory finds the items that were not removed, claimed ones included
+        MappedFileQueue<Long> recoveredQueue = createQueue();
+        assertThat(directory.list().length).isLessThanOrEqualTo(segmentFiles);
+        assertThat(recoveredQueue.getQueueSize()).isEqualTo(199);
+        List<Long> recoveredItems = new ArrayList<Long>();
+        for (QueueItem<Long> queueItem : recoveredQueue.getAndLockNextItems(1000)) {
+            recoveredItems.add(queueItem.getItem());
+        }
+        assertThat(recoveredItems.size()).isEqualTo(199);
+        assertThat(recoveredItems.get(0)).isEqualTo(301L);
+        assertThat(recoveredItems.get(198)).isEqualTo(499L);
+        queue.close();
+        recoveredQueue.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        MappedFileQueue<Long> queue = createQueue();
+        List<Long> items = new ArrayList<Long>();
+        for (long i = 0; i < 100; i++) {
+            items.add(i);
+        }
+        queue.addItems(items);
+        QueueItem<Long> queueItem = queue.getAndLockNextItem();
+        queue.close();
+        try {
+            queue.addItem(100L);
+            fail("A closed queue must not take items");
+        } catch (TdbqException e) {
+        }
+        // removing an item of a closed queue does not touch the released segments
+        queue.removeItem(queueItem);
+        // the segment files are no longer held and can be deleted
+        MappedFileQueue<Long> reopenedQueue = createQueue();
+        assertThat(reopenedQueue.getQueueSize()).isEqualTo(100);
+        assertThat(reopenedQueue.getAndLockNextItem().getItem()).isEqualTo(0L);
+        reopenedQueue.close();
+        for (File file : directory.listFiles()) {
+            assertThat(file.delete()).isTrue();
+        }
+    }
+
+    @Test
+    public void testQueueExecutor() throws Exception {
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        MappedFileQueue<Long> queue = createQueue();
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                }).build();
+        for (int i = 0; i < 1000; i++) {
+            queueExecutor.addItem((long) i);
+        }
+        for (int i = 0; i < 200 && numbers.size() < 1000; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(1000);
+        assertThat(queue.getQueueSize()).isEqualTo(0);
+        queue.close();
+    }
+
+}
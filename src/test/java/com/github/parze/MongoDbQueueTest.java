@@ -1,20 +1,152 @@
 package com.github.parze;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
 import org.junit.Before;
-import org.junit.Ignore;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.fest.assertions.Assertions.assertThat;
 
-@Ignore // ignore since it is a integration test
+/**
+ * Runs against an in-process server that speaks the MongoDB wire protocol and keeps its data in memory.
+ */
 public class MongoDbQueueTest {
 
+    private static MongoServer mongoServer;
+    private static InetSocketAddress serverAddress;
+
     private MongoClient mongoClient;
 
+    @BeforeClass
+    public static void setupBeforeClass() {
+        mongoServer = new MongoServer(new MemoryBackend());
+        serverAddress = mongoServer.bind();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() {
+        mongoServer.shutdown();
+    }
+
     @Before
     public void setup() {
-        this.mongoClient = new MongoClient( "localhost" , 27017);
+        this.mongoClient = new MongoClient(serverAddress.getHostName(), serverAddress.getPort());
+    }
+
+    @Test
+    public void testQueueGroups() throws Exception {
+        MongoDbQueue<String> queue = new MongoDbQueue.Builder<String>()
+                .withClassOfItem(String.class)
+                .withQueueName("queue_test_groups")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .build();
+        queue.getQueueCollection().remove(new BasicDBObject());
+        queue.addItem("a1", "a");
+        queue.addItem("a2", "a");
+        queue.addItem("b1", "b");
+        List<QueueItem<String>> queueItems = queue.getAndLockNextItems(10);
+        assertThat(queueItems.size()).isEqualTo(2);
+        assertThat(queueItems.get(0).getItem()).isEqualTo("a1");
+        assertThat(queue.getAndLockNextItem()).isNull();
+        queue.removeItem(queueItems.get(0));
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo("a2");
+    }
+
+    @Test
+    public void testReleaseItems() throws Exception {
+        MongoDbQueue<String> queue = new MongoDbQueue.Builder<String>()
+                .withClassOfItem(String.class)
+                .withQueueName("queue_test_release")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .build();
+        queue.getQueueCollection().remove(new BasicDBObject());
+        queue.addItem("a1", "a");
+        queue.addItem("a2", "a");
+        List<QueueItem<String>> queueItems = queue.getAndLockNextItems(10);
+        assertThat(queueItems.size()).isEqualTo(1);
+        assertThat(queue.getAndLockNextItems(10)).isEmpty();
+        // a released item frees its group and is claimed again
+        queue.releaseItems(queueItems);
+        queueItems = queue.getAndLockNextItems(10);
+        assertThat(queueItems.size()).isEqualTo(1);
+        assertThat(queueItems.get(0).getItem()).isEqualTo("a1");
+    }
+
+    @Test
+    public void testQueueGroupsBehindBusyGroup() throws Exception {
+        MongoDbQueue<String> queue = new MongoDbQueue.Builder<String>()
+                .withClassOfItem(String.class)
+                .withQueueName("queue_test_busy_group")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .build();
+        for (int i = 0; i < 50; i++) {
+            queue.addItem("a" + i, "a");
+        }
+        queue.addItem("b0", "b");
+        queue.addItem("c0");
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo("a0");
+        // the items waiting behind a0 are passed over in chunks
+        List<QueueItem<String>> queueItems = queue.getAndLockNextItems(2);
+        assertThat(queueItems.size()).isEqualTo(2);
+        assertThat(queueItems.get(0).getItem()).isEqualTo("b0");
+        assertThat(queueItems.get(1).getItem()).isEqualTo("c0");
+        assertThat(queue.getAndLockNextItems(10)).isEmpty();
+    }
+
+    @Test
+    public void testQueueGroupsWithPriorities() throws Exception {
+        MongoDbQueue<String> queue = new MongoDbQueue.Builder<String>()
+                .withClassOfItem(String.class)
+                .withQueueName("queue_test_group_priorities")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .build();
+        queue.addItem("a0", new AddItemOptions().withGroupKey("a"));
+        // a later item of a group waits for the older ones even with a higher priority
+        queue.addItem("a1", new AddItemOptions().withGroupKey("a").withPriority(10));
+        queue.addItem("b0", new AddItemOptions().withGroupKey("b").withPriority(5));
+        List<QueueItem<String>> queueItems = queue.getAndLockNextItems(10);
+        assertThat(queueItems.size()).isEqualTo(2);
+        assertThat(queueItems.get(0).getItem()).isEqualTo("b0");
+        assertThat(queueItems.get(1).getItem()).isEqualTo("a0");
+        queue.removeItems(queueItems);
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo("a1");
+    }
+
+    @Test
+    public void testSchemaMigration() throws Exception {
+        // an item added before priorities were supported
+        mongoClient.getDB("queue_test").getCollection("queue_test_migration").insert(new BasicDBObject("created_sequence", 1L)
+                .append("item", "1").append("started_at", null));
+        MongoDbQueue<Long> queue = new MongoDbQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_migration")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .build();
+        assertThat(queue.getQueueCollection().findOne().get("prio")).isEqualTo(AddItemOptions.DEFAULT_PRIORITY);
+        assertThat(mongoClient.getDB("queue_test").getCollection("tdbq_schema_version")
+                .findOne(new BasicDBObject("_id", "queue_test_migration")).get("version")).isEqualTo(1);
+        assertThat(queue.getAndLockNextItem().getItem()).isEqualTo(1L);
     }
 
     @Test
@@ -57,4 +189,119 @@ public class MongoDbQueueTest {
 
     }
 
+    @Test
+    public void testQueueExecutorWokenBySignals() throws Exception {
+        MongoDbQueue<Long> queue = new MongoDbQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_signals")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .withSignalOnAddItem(true)
+                .build();
+        queue.getQueueCollection().drop();
+        final List<Long> numbers = Collections.synchronizedList(new ArrayList<Long>());
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                numbers.add(queueItem.getItem());
+                                callBackWhenDone.done(queueItem);
+                            }
+                        };
+                    }
+                })
+                .withWakeUpSource(new MongoDbTailableWakeUpSource(queue))
+                .build();
+        // added straight to the queue, as another node would, so only the signal wakes the executor
+        Thread.sleep(100);
+        queue.addItem(1L);
+        queue.addItem(2L);
+        for (int i = 0; i < 300 && numbers.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        queueExecutor.shutdown();
+        assertThat(numbers.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testWakeUpSourceFollowsSignalsInInsertionOrder() throws Exception {
+        // the in-process server has no capped collections, so the signals are followed from a list
+        final AtomicInteger wakeUps = new AtomicInteger();
+        Runnable wakeUp = new Runnable() {
+            public void run() {
+                wakeUps.incrementAndGet();
+            }
+        };
+        ObjectId seenSignalId = new ObjectId();
+        // the id of a signal from a node whose clock is a minute behind sorts before the signal already seen
+        ObjectId laterSignalId = new ObjectId(new Date(System.currentTimeMillis() - 60000));
+        List<DBObject> signals = Arrays.<DBObject>asList(new BasicDBObject("_id", new ObjectId()),
+                new BasicDBObject("_id", seenSignalId), new BasicDBObject("_id", laterSignalId));
+        assertThat(MongoDbTailableWakeUpSource.followSignals(signals.iterator(), seenSignalId, wakeUp)).isEqualTo(laterSignalId);
+        assertThat(wakeUps.get()).isEqualTo(1);
+        // without a signal seen before every signal wakes up
+        wakeUps.set(0);
+        assertThat(MongoDbTailableWakeUpSource.followSignals(signals.iterator(), null, wakeUp)).isEqualTo(laterSignalId);
+        assertThat(wakeUps.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testQueueWithSequenceBlocks() throws Exception {
+        MongoDbQueue<Long> queue0 = new MongoDbQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_sequence_blocks")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .withSequenceBlockSize(10)
+                .build();
+        MongoDbQueue<Long> queue1 = new MongoDbQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_sequence_blocks")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .withSequenceBlockSize(10)
+                .build();
+        // instances adding to the same queue take separate blocks of sequence numbers
+        for (long i = 0; i < 15; i++) {
+            queue0.addItem(i);
+            queue1.addItem(100 + i);
+        }
+        Set<Long> ids = new HashSet<Long>();
+        List<QueueItem<Long>> queueItems = queue0.getAndLockNextItems(100);
+        for (QueueItem<Long> queueItem : queueItems) {
+            ids.add(queueItem.getId());
+        }
+        assertThat(queueItems.size()).isEqualTo(30);
+        assertThat(ids.size()).isEqualTo(30);
+        // items added by one instance are claimed in the order it added them
+        assertThat(queueItems.get(0).getItem()).isEqualTo(0L);
+        assertThat(queueItems.get(10).getItem()).isEqualTo(100L);
+        queue0.removeItems(queueItems);
+        assertThat(queue1.getQueueSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void testQueueAddItems() throws Exception {
+        MongoDbQueue<Long> queue = new MongoDbQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withQueueName("queue_test_add_items")
+                .withMongoClient(this.mongoClient)
+                .withDatabaseName("queue_test")
+                .build();
+        queue.addItems(Arrays.asList(0L, 1L, 2L, 3L, 4L));
+        queue.addItems(new ArrayList<Long>());
+        assertThat(queue.getQueueSize()).isEqualTo(5);
+        // one block of sequence numbers keeps the items in the order of the collection
+        List<QueueItem<Long>> queueItems = queue.getAndLockNextItems(10);
+        assertThat(queueItems.size()).isEqualTo(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(queueItems.get(i).getItem()).isEqualTo((long) i);
+            assertThat(queueItems.get(i).getId()).isEqualTo(queueItems.get(0).getId() + i);
+        }
+        queue.addItem(5L);
+        assertThat(queue.getAndLockNextItem().getId()).isEqualTo(queueItems.get(0).getId() + 5);
+    }
+
 }
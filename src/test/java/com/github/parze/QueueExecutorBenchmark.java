@@ -0,0 +1,76 @@
+package com.github.parze;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Ignore // ignore since it is a benchmark, virtual threads need Java 21
+public class QueueExecutorBenchmark {
+
+    private Logger logger = LoggerFactory.getLogger(QueueExecutorBenchmark.class);
+
+    private static final int ITEMS = 2000;
+    private static final long TASK_WAIT = 20;
+
+    @Test
+    public void benchmarkFixedThreadPoolAgainstVirtualThreads() throws Exception {
+        DataSource dataSource = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).build();
+        long fixedThreadPool = run(dataSource, "queue_benchmark_fixed", false, 20);
+        long virtualThreads = run(dataSource, "queue_benchmark_virtual", true, 1000);
+        logger.info("Fixed thread pool of 20 threads: " + fixedThreadPool + " ms for " + ITEMS + " items");
+        logger.info("Virtual threads limited to 1000 items: " + virtualThreads + " ms for " + ITEMS + " items");
+    }
+
+    private long run(DataSource dataSource, String queueName, boolean virtualThreads, int threadPoolSize) throws Exception {
+        Queue<Long> queue = new RelationalDatabaseQueue.Builder<Long>()
+                .withClassOfItem(Long.class)
+                .withDataSource(dataSource)
+                .withQueueName(queueName)
+                .build();
+        List<Long> items = new ArrayList<Long>();
+        for (long i = 0; i < ITEMS; i++) {
+            items.add(i);
+        }
+        queue.addItems(items);
+        final CountDownLatch done = new CountDownLatch(ITEMS);
+        long start = System.currentTimeMillis();
+        QueueExecutor<Long> queueExecutor = new QueueExecutor.Builder<Long>()
+                .withQueue(queue)
+                .withRunnableCreator(new QueueExecutor.RunnableCreator<Long>() {
+                    public Runnable createRunnable(final QueueItem<Long> queueItem, final QueueExecutor.CallBackWhenDone<Long> callBackWhenDone) {
+                        return new Runnable() {
+                            public void run() {
+                                // stands in for a call to another service
+                                try {
+                                    Thread.sleep(TASK_WAIT);
+                                } catch (InterruptedException e) {
+                                }
+                                callBackWhenDone.done(queueItem);
+                                done.countDown();
+                            }
+                        };
+                    }
+                })
+                .withThreadPoolSize(threadPoolSize)
+                .withVirtualThreads(virtualThreads)
+                .withBatchSize(100)
+                .withAckBatchSize(100)
+                .build();
+        assertThat(done.await(5, TimeUnit.MINUTES)).isTrue();
+        long elapsed = System.currentTimeMillis() - start;
+        queueExecutor.shutdown();
+        return elapsed;
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.github.parze;
+
+import org.junit.Test;
+import org.springframework.jdbc.core.SqlParameterValue;
+
+import java.sql.Types;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RelationalDatabaseTypeTest {
+
+    @Test
+    public void testPostgresSqlInsertArgs() {
+        Object[] args = RelationalDatabaseQueue.createInsertItemArgs(new RelationalDatabaseType.PostgresSqlSkipLocked(), "1",
+                new AddItemOptions(), 0);
+        // a null payload bound as a Blob reaches PostgreSQL as an oid, which the Bytea column does not accept
+        assertThat(((SqlParameterValue) args[1]).getSqlType()).isEqualTo(Types.BINARY);
+        assertThat(((SqlParameterValue) args[1]).getValue()).isNull();
+        assertThat(args[0]).isEqualTo("1");
+        args = RelationalDatabaseQueue.createInsertItemArgs(new RelationalDatabaseType.PostgresSql(), new byte[] {1},
+                new AddItemOptions(), 0);
+        assertThat(((SqlParameterValue) args[0]).getSqlType()).isEqualTo(Types.VARCHAR);
+        assertThat(args[1]).isEqualTo(new byte[] {1});
+    }
+
+    @Test
+    public void testInsertArgs() {
+        Object[] args = RelationalDatabaseQueue.createInsertItemArgs(new RelationalDatabaseType.H2SkipLocked(), "1",
+                new AddItemOptions(), 0);
+        assertThat(((SqlParameterValue) args[1]).getSqlType()).isEqualTo(Types.BLOB);
+        args = RelationalDatabaseQueue.createInsertItemArgs(new RelationalDatabaseType.Oracle(), "1", new AddItemOptions(), 0);
+        assertThat(((SqlParameterValue) args[1]).getSqlType()).isEqualTo(Types.BLOB);
+    }
+
+}